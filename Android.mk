@@ -24,5 +24,7 @@ LOCAL_MODULE_TAGS := optional
 LOCAL_REQUIRED_MODULES := UnifiedNlpApi NetworkLocation
 LOCAL_STATIC_JAVA_LIBRARIES := UnifiedNlpApi
 LOCAL_PROGUARD_ENABLED := disabled
+# keep the xz assets uncompressed, they are decompressed with random access
+LOCAL_AAPT_FLAGS := -0 .xz
 include $(BUILD_PACKAGE)
 
@@ -0,0 +1,159 @@
+package org.gfd.gsmlocation.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.gfd.gsmlocation.db.BCSReader;
+import org.gfd.gsmlocation.db.OperatorDictionary;
+import org.gfd.gsmlocation.db.TowerReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookup benchmarks for {@link BCSReader#get(Object...)} and
+ * {@link BCSReader#getAll(Object...)}. Keys are taken from the seeded query
+ * trace of the synthetic database, so every run sees the same access pattern.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BCSReaderBenchmark {
+
+    private static final int SAMPLES = 4096;
+
+    @Param({"10000", "1000000", "30000000"})
+    public long rows;
+
+    /**
+     * Tower db format, 1: double positions, 2: fixed point positions,
+     * 3: operator dictionary, 4: radio tagged wide cell ids.
+     */
+    @Param({"1", "2", "3", "4"})
+    public int format;
+
+    private TowerReader reader;
+    private int[][] rawHits;
+    private Object[][] hits;
+    private Object[][] misses;
+    private Object[][] lacs;
+
+    /**
+     * Per thread position in the key sample.
+     */
+    @State(Scope.Thread)
+    public static class Position {
+        int next = 0;
+        final double[] lngLat = new double[2];
+
+        int next() {
+            return next++ & (SAMPLES - 1);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        reader = new TowerReader(format, BenchmarkData.towers(rows, format).getPath());
+        int[][] trace = BenchmarkData.trace(rows);
+        rawHits = new int[SAMPLES][];
+        hits = new Object[SAMPLES][];
+        misses = new Object[SAMPLES][];
+        lacs = new Object[SAMPLES][];
+        int h = 0;
+        int m = 0;
+        for (int i = 0; i < trace.length && (h < SAMPLES || m < SAMPLES); i++) {
+            int[] q = trace[i];
+            Object[] key = key(q);
+            if (q[4] == 1 && h < SAMPLES) {
+                lacs[h] = lacKey(q);
+                rawHits[h] = q;
+                hits[h++] = key;
+            } else if (q[4] == 0 && m < SAMPLES) {
+                misses[m++] = key;
+            }
+        }
+        if (h < SAMPLES || m < SAMPLES) {
+            throw new IllegalStateException("Trace too short for " + SAMPLES + " samples");
+        }
+    }
+
+    /**
+     * Build the boxed key of a trace query for the benchmarked format.
+     * @param q The query.
+     * @return The key.
+     */
+    private Object[] key(int[] q) {
+        OperatorDictionary operators = reader.getOperators();
+        if (operators == null) {
+            return new Object[]{q[0], q[1], q[2], q[3]};
+        }
+        // unknown operators get an unused code, lookups still hit the file
+        int code = operators.code(q[2], q[3]);
+        short op = (short) (code < 0 ? 0xffff : code);
+        if (reader.getFormat() == TowerReader.FORMAT_RADIO) {
+            return new Object[]{(byte) TowerReader.RADIO_GSM, q[0], q[1] & 0xffffffffl, op};
+        }
+        return new Object[]{q[0], q[1], op};
+    }
+
+    /**
+     * Build the location area prefix of a trace query for the benchmarked
+     * format, format 4 files are keyed by radio first.
+     * @param q The query.
+     * @return The prefix key.
+     */
+    private Object[] lacKey(int[] q) {
+        if (reader.getFormat() == TowerReader.FORMAT_RADIO) {
+            return new Object[]{(byte) TowerReader.RADIO_GSM, q[0]};
+        }
+        return new Object[]{q[0]};
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+    }
+
+    @Benchmark
+    public Object[] exactHit(Position position) throws IOException {
+        return reader.get(hits[position.next()]);
+    }
+
+    @Benchmark
+    public double[] exactHitTyped(Position position) throws IOException {
+        final int[] q = rawHits[position.next()];
+        reader.lookup(q[0], q[1], q[2], q[3], position.lngLat);
+        return position.lngLat;
+    }
+
+    @Benchmark
+    public Object[] exactMiss(Position position) throws IOException {
+        return reader.get(misses[position.next()]);
+    }
+
+    @Benchmark
+    public BCSReader.BlockEntry[] prefixScan(Position position) throws IOException {
+        return reader.getAll(lacs[position.next()]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object[] concurrentExactHit(Position position) throws IOException {
+        return reader.get(hits[position.next()]);
+    }
+
+}
@@ -0,0 +1,95 @@
+package org.gfd.gsmlocation.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.gfd.gsmlocation.db.TowerReader;
+import org.gfd.gsmlocation.db.TowerWriter;
+
+/**
+ * Generated tower databases and query traces for the benchmarks, see
+ * {@link SyntheticTowers}. Files are cached in the directory given by the
+ * bench.data system property (default target/bench-data), so only the first
+ * run pays for the generation.
+ */
+public final class BenchmarkData {
+
+    public static final Class<?>[] KEY_TYPES =
+        new Class<?>[]{Integer.class, Integer.class, Integer.class, Integer.class};
+    public static final Class<?>[] VALUE_TYPES = new Class<?>[]{Double.class, Double.class};
+
+    private BenchmarkData() {}
+
+    private static File dir() {
+        File dir = new File(System.getProperty("bench.data", "target/bench-data"));
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static SyntheticTowers generator(long rows) {
+        SyntheticTowers.Config config = new SyntheticTowers.Config();
+        config.rows = rows;
+        return new SyntheticTowers(config);
+    }
+
+    /**
+     * Retrieve (and generate if needed) a tower database with the given number of rows.
+     * @param rows The row count.
+     * @return The database file.
+     * @throws IOException
+     */
+    public static File towers(long rows) throws IOException {
+        File file = new File(dir(), "towers-" + rows + ".bcs");
+        if (!file.exists()) {
+            File tmp = new File(dir(), "towers-" + rows + ".bcs.tmp");
+            generator(rows).writeBCS(tmp);
+            rename(tmp, file);
+        }
+        return file;
+    }
+
+    /**
+     * Retrieve (and generate if needed) a tower database in a given format.
+     * @param rows The row count.
+     * @param format The format, see {@link TowerReader}.
+     * @return The database file.
+     * @throws IOException
+     */
+    public static File towers(long rows, int format) throws IOException {
+        if (format == TowerReader.FORMAT_DOUBLE) {
+            return towers(rows);
+        }
+        File file = new File(dir(), "towers-" + rows + "-f" + format + ".bcs");
+        if (!file.exists()) {
+            File tmp = new File(dir(), "towers-" + rows + "-f" + format + ".bcs.tmp");
+            TowerReader source = new TowerReader(TowerReader.FORMAT_DOUBLE, towers(rows).getPath());
+            TowerWriter.convert(source, format, tmp.getPath());
+            source.close();
+            rename(tmp, file);
+        }
+        return file;
+    }
+
+    /**
+     * Retrieve (and generate if needed) the default query trace for a database.
+     * @param rows The row count of the database.
+     * @return The trace, one int[5] (lac, cid, mcc, mnc, hit) per query.
+     * @throws IOException
+     */
+    public static int[][] trace(long rows) throws IOException {
+        File file = new File(dir(), "towers-" + rows + ".trace");
+        if (!file.exists()) {
+            File tmp = new File(dir(), "towers-" + rows + ".trace.tmp");
+            generator(rows).writeTrace(new SyntheticTowers.TraceConfig(), tmp);
+            rename(tmp, file);
+        }
+        return SyntheticTowers.readTrace(file);
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Could not rename " + from + " to " + to);
+        }
+    }
+
+}
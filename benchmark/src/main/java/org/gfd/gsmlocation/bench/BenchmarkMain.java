@@ -0,0 +1,26 @@
+package org.gfd.gsmlocation.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH entry point that always attaches the GC profiler, so allocation rates
+ * (gc.alloc.rate.norm) are reported next to the timings. All regular JMH
+ * command line options are accepted, e.g. -p rows=10000.
+ */
+public final class BenchmarkMain {
+
+    private BenchmarkMain() {}
+
+    public static void main(String[] args) throws Exception {
+        new Runner(
+            new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build()
+        ).run();
+    }
+
+}
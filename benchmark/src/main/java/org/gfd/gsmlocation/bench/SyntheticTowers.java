@@ -0,0 +1,368 @@
+package org.gfd.gsmlocation.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.gfd.gsmlocation.db.BCSWriter;
+
+/**
+ * Deterministic generator for synthetic tower databases and matching query
+ * traces. The same configuration (including the seed) always produces the
+ * same files.<br />
+ * The model: a fixed set of operators (MCC/MNC pairs) with a skewed
+ * popularity, each operator has a home position. LAC codes are reused by
+ * several operators (as they are world wide). Every (LAC, operator) pair is
+ * a cluster of cells with increasing CIDs separated by random gaps, starting
+ * at a random CID and located around a cluster center near the operator
+ * home.<br />
+ * Rows are generated LAC by LAC, so only a single LAC is held in memory.
+ */
+public class SyntheticTowers {
+
+    /**
+     * Generator settings. The defaults resemble the opencellid data.
+     */
+    public static class Config {
+        /** Random seed, identical seeds produce identical files. */
+        public long seed = 1;
+        /** Number of rows to generate. */
+        public long rows = 1000000;
+        /** Number of distinct operators (MCC/MNC pairs). */
+        public int operators = 1500;
+        /** Number of distinct countries (MCCs) the operators are spread over. */
+        public int countries = 200;
+        /** Zipf exponent of the operator popularity, 0 is uniform. */
+        public double operatorSkew = 1.1;
+        /** Mean number of operators sharing a LAC code. */
+        public double operatorsPerLac = 1.5;
+        /** Mean number of cells per (LAC, operator) cluster. */
+        public double cellsPerCluster = 60;
+        /** Mean gap between consecutive CIDs of a cluster (at least 1). */
+        public double cidGap = 4;
+        /** Fraction of clusters with UMTS style 28 bit CIDs (RNC &lt;&lt; 16 | CID). */
+        public double wideCidFraction = 0.3;
+        /** Standard deviation (degrees) of cluster centers around the operator home. */
+        public double clusterSpread = 2;
+        /** Standard deviation (degrees) of towers around the cluster center. */
+        public double towerSpread = 0.03;
+    }
+
+    /**
+     * Trace settings.
+     */
+    public static class TraceConfig {
+        public long seed = 2;
+        /** Number of queries. */
+        public int queries = 100000;
+        /** Number of distinct towers the hits are drawn from. */
+        public int workingSet = 20000;
+        /** Zipf exponent of the tower popularity within the working set. */
+        public double skew = 0.9;
+        /** Fraction of queries that can not be found. */
+        public double missRatio = 0.2;
+    }
+
+    /**
+     * CIDs with this bit set are never generated, trace misses use it.
+     */
+    public static final int MISS_BIT = 0x20000000;
+
+    private final Config config;
+    private final int[] mcc;
+    private final int[] mnc;
+    private final double[] homeLng;
+    private final double[] homeLat;
+    private final double[] popularity;
+
+    public SyntheticTowers(Config config) {
+        this.config = config;
+        Random random = new Random(config.seed);
+        double[] countryLng = new double[config.countries];
+        double[] countryLat = new double[config.countries];
+        for (int i = 0; i < config.countries; i++) {
+            countryLng[i] = random.nextDouble() * 340d - 170d;
+            countryLat[i] = random.nextDouble() * 120d - 55d;
+        }
+        mcc = new int[config.operators];
+        mnc = new int[config.operators];
+        homeLng = new double[config.operators];
+        homeLat = new double[config.operators];
+        int[] mncCount = new int[config.countries];
+        for (int i = 0; i < config.operators; i++) {
+            int country = random.nextInt(config.countries);
+            mcc[i] = 200 + country * (700 / config.countries);
+            mnc[i] = mncCount[country]++;
+            homeLng[i] = countryLng[country];
+            homeLat[i] = countryLat[country];
+        }
+        popularity = cumulativeZipf(config.operators, config.operatorSkew);
+    }
+
+    /**
+     * Cumulative zipf distribution over n elements.
+     */
+    private static double[] cumulativeZipf(int n, double skew) {
+        double[] c = new double[n];
+        double sum = 0d;
+        for (int i = 0; i < n; i++) {
+            sum += 1d / Math.pow(i + 1, skew);
+            c[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            c[i] /= sum;
+        }
+        return c;
+    }
+
+    private static int sample(double[] cumulative, Random random) {
+        int i = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(i < 0 ? -i - 1 : i, cumulative.length - 1);
+    }
+
+    /**
+     * Geometric distributed value &gt;= 1 with the given mean.
+     */
+    private static int geometric(Random random, double mean) {
+        if (mean <= 1d) return 1;
+        double p = 1d / mean;
+        return 1 + (int) (Math.log(1d - random.nextDouble()) / Math.log(1d - p));
+    }
+
+    /**
+     * Receives the generated rows in key order.
+     */
+    public interface RowSink {
+        void row(int lac, int cid, int mcc, int mnc, double lng, double lat) throws IOException;
+    }
+
+    /**
+     * Generate all rows in (lac, cid, mcc, mnc) order.
+     * @param sink The row consumer.
+     * @throws IOException
+     */
+    public void generate(RowSink sink) throws IOException {
+        final Random random = new Random(config.seed * 31 + 7);
+        long remaining = config.rows;
+        int lac = 0;
+        int[] cids = new int[1024];
+        int[] ops = new int[1024];
+        double[] lngs = new double[1024];
+        double[] lats = new double[1024];
+        long[] order = new long[1024];
+        while (remaining > 0) {
+            lac += geometric(random, 1.5d);
+            // all clusters of this lac
+            int clusters = geometric(random, config.operatorsPerLac);
+            int n = 0;
+            for (int c = 0; c < clusters && n < remaining; c++) {
+                final int op = sample(popularity, random);
+                final double centerLng = homeLng[op] + random.nextGaussian() * config.clusterSpread;
+                final double centerLat = homeLat[op] + random.nextGaussian() * config.clusterSpread;
+                final boolean wide = random.nextDouble() < config.wideCidFraction;
+                int cid = wide ? (1 + random.nextInt(4095)) << 16 : random.nextInt(60000);
+                final int cells = (int) Math.min(
+                    geometric(random, config.cellsPerCluster), remaining - n);
+                for (int i = 0; i < cells; i++) {
+                    cid += geometric(random, config.cidGap);
+                    if (n == cids.length) {
+                        cids = Arrays.copyOf(cids, n * 2);
+                        ops = Arrays.copyOf(ops, n * 2);
+                        lngs = Arrays.copyOf(lngs, n * 2);
+                        lats = Arrays.copyOf(lats, n * 2);
+                        order = Arrays.copyOf(order, n * 2);
+                    }
+                    cids[n] = cid & (MISS_BIT - 1);
+                    ops[n] = op;
+                    lngs[n] = clamp(centerLng + random.nextGaussian() * config.towerSpread, 180d);
+                    lats[n] = clamp(centerLat + random.nextGaussian() * config.towerSpread, 85d);
+                    n++;
+                }
+            }
+            // sort the lac by (cid, mcc, mnc) and drop duplicate keys
+            for (int i = 0; i < n; i++) {
+                order[i] = ((long) cids[i] << 32) | ((long) mcc[ops[i]] << 20) |
+                           ((long) mnc[ops[i]] << 10) | (i & 0x3ff);
+            }
+            if (n > 1024) {
+                // the index no longer fits the low bits, fall back to a stable sort
+                Integer[] idx = new Integer[n];
+                for (int i = 0; i < n; i++) idx[i] = i;
+                final long[] o = order;
+                Arrays.sort(idx, new java.util.Comparator<Integer>() {
+                    public int compare(Integer a, Integer b) {
+                        long l = o[a] >>> 10, r = o[b] >>> 10;
+                        return l < r ? -1 : (l > r ? 1 : a.compareTo(b));
+                    }
+                });
+                long previous = -1;
+                for (Integer i : idx) {
+                    if ((order[i] >>> 10) == previous) continue;
+                    previous = order[i] >>> 10;
+                    sink.row(lac, cids[i], mcc[ops[i]], mnc[ops[i]], lngs[i], lats[i]);
+                    remaining--;
+                }
+            } else {
+                Arrays.sort(order, 0, n);
+                long previous = -1;
+                for (int j = 0; j < n; j++) {
+                    if ((order[j] >>> 10) == previous) continue;
+                    previous = order[j] >>> 10;
+                    final int i = (int) (order[j] & 0x3ff);
+                    sink.row(lac, cids[i], mcc[ops[i]], mnc[ops[i]], lngs[i], lats[i]);
+                    remaining--;
+                }
+            }
+        }
+    }
+
+    private static double clamp(double v, double limit) {
+        return Math.max(-limit, Math.min(limit, v));
+    }
+
+    /**
+     * Write a tower database (4 int key, 2 double value).
+     * @param file The target file.
+     * @return The number of rows written.
+     * @throws IOException
+     */
+    public long writeBCS(File file) throws IOException {
+        final BCSWriter writer = new BCSWriter(
+            BenchmarkData.KEY_TYPES, BenchmarkData.VALUE_TYPES, file.getPath());
+        final byte[][] key = new byte[][]{new byte[4], new byte[4], new byte[4], new byte[4]};
+        final byte[][] value = new byte[][]{new byte[8], new byte[8]};
+        generate(new RowSink() {
+            public void row(int lac, int cid, int mcc, int mnc, double lng, double lat)
+                throws IOException
+            {
+                putInt(key[0], lac);
+                putInt(key[1], cid);
+                putInt(key[2], mcc);
+                putInt(key[3], mnc);
+                putLong(value[0], Double.doubleToLongBits(lng));
+                putLong(value[1], Double.doubleToLongBits(lat));
+                writer.append(key, value);
+            }
+        });
+        writer.close();
+        return writer.getEntryCount();
+    }
+
+    /**
+     * Write a query trace for the generated database. Every query is stored
+     * as 4 ints (lac, cid, mcc, mnc) and a byte that is 1 for expected hits.
+     * Hits are drawn with a zipf distribution from a uniform sample of the
+     * rows, misses carry {@link #MISS_BIT} in their CID.
+     * @param trace The trace settings.
+     * @param file The target file.
+     * @throws IOException
+     */
+    public void writeTrace(TraceConfig trace, File file) throws IOException {
+        final int size = (int) Math.min(trace.workingSet, config.rows);
+        final int[][] sample = new int[size][];
+        final Random reservoir = new Random(trace.seed);
+        final long[] seen = new long[]{0};
+        generate(new RowSink() {
+            public void row(int lac, int cid, int mcc, int mnc, double lng, double lat) {
+                long i = seen[0]++;
+                if (i < size) {
+                    sample[(int) i] = new int[]{lac, cid, mcc, mnc};
+                } else {
+                    long j = (reservoir.nextLong() & Long.MAX_VALUE) % (i + 1);
+                    if (j < size) {
+                        sample[(int) j] = new int[]{lac, cid, mcc, mnc};
+                    }
+                }
+            }
+        });
+        final double[] zipf = cumulativeZipf(size, trace.skew);
+        final Random random = new Random(trace.seed + 1);
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        try {
+            for (int q = 0; q < trace.queries; q++) {
+                int[] k = sample[sample(zipf, random)];
+                boolean miss = random.nextDouble() < trace.missRatio;
+                out.writeInt(k[0]);
+                out.writeInt(miss ? k[1] | MISS_BIT : k[1]);
+                out.writeInt(k[2]);
+                out.writeInt(k[3]);
+                out.writeByte(miss ? 0 : 1);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read a query trace written by {@link #writeTrace(TraceConfig, File)}.
+     * @param file The trace file.
+     * @return One int[5] (lac, cid, mcc, mnc, hit) per query.
+     * @throws IOException
+     */
+    public static int[][] readTrace(File file) throws IOException {
+        int[][] queries = new int[(int) (file.length() / 17)][];
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try {
+            for (int i = 0; i < queries.length; i++) {
+                queries[i] = new int[]{
+                    in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readByte()
+                };
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated trace " + file);
+        } finally {
+            in.close();
+        }
+        return queries;
+    }
+
+    private static void putInt(byte[] b, int i) {
+        b[0] = (byte) (i >> 24);
+        b[1] = (byte) (i >> 16);
+        b[2] = (byte) (i >> 8);
+        b[3] = (byte) i;
+    }
+
+    private static void putLong(byte[] b, long l) {
+        putInt(b, (int) (l >> 32));
+        b[4] = (byte) (l >> 24);
+        b[5] = (byte) (l >> 16);
+        b[6] = (byte) (l >> 8);
+        b[7] = (byte) l;
+    }
+
+    /**
+     * Command line entry point.<br />
+     * Usage: SyntheticTowers rows seed output.bcs [trace.bin]
+     * @param args The command line arguments.
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: SyntheticTowers rows seed output.bcs [trace.bin]");
+            System.exit(1);
+        }
+        Config config = new Config();
+        config.rows = Long.parseLong(args[0]);
+        config.seed = Long.parseLong(args[1]);
+        SyntheticTowers towers = new SyntheticTowers(config);
+        long start = System.currentTimeMillis();
+        long rows = towers.writeBCS(new File(args[2]));
+        System.out.println(
+            "Wrote " + rows + " rows in " + (System.currentTimeMillis() - start) + "ms");
+        if (args.length > 3) {
+            towers.writeTrace(new TraceConfig(), new File(args[3]));
+        }
+    }
+
+}
@@ -0,0 +1,77 @@
+package org.gfd.gsmlocation.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.gfd.gsmlocation.db.TowerReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full table scan benchmark for {@link TowerReader#scan(TowerReader.BatchConsumer)}.
+ * The score is the time of one pass over all rows, rows per second follow
+ * from the rows parameter.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TowerScanBenchmark {
+
+    @Param({"1000000", "30000000"})
+    public long rows;
+
+    /**
+     * Tower db format, see {@link TowerReader}.
+     */
+    @Param({"1", "2", "3", "4"})
+    public int format;
+
+    private TowerReader reader;
+    private TowerReader.Batch batch;
+
+    /**
+     * Sums the cell ids, so the decoded columns can not be optimized away.
+     */
+    private static final class Checksum implements TowerReader.BatchConsumer {
+        long sum = 0;
+
+        public void accept(TowerReader.Batch batch) {
+            for (int i = 0; i < batch.size; i++) {
+                sum += batch.cid[i];
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        reader = new TowerReader(format, BenchmarkData.towers(rows, format).getPath());
+        batch = new TowerReader.Batch(4096);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        reader.close();
+    }
+
+    @Benchmark
+    public long scan() throws IOException {
+        Checksum checksum = new Checksum();
+        reader.scan(batch, 256, checksum);
+        return checksum.sum;
+    }
+
+}
@@ -0,0 +1,117 @@
+package org.gfd.gsmlocation.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Priorities and tombstones of the {@link BCSMerge} k-way merge.
+ */
+public class BCSMergeTest {
+
+    private static final Class<?>[] KEY = new Class<?>[]{Integer.class, Integer.class};
+    private static final Class<?>[] VALUE = new Class<?>[]{Double.class, Double.class};
+
+    private static final Object[] TOMBSTONE = new Object[]{Double.NaN, Double.NaN};
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * Write a file of (lac, cid) keys.
+     * @param name The file name.
+     * @param from The first cid.
+     * @param to The last cid (exclusive).
+     * @param step The cid step.
+     * @param lng The longitude of all entries, NaN for tombstones.
+     * @return A reader for the file.
+     */
+    private BCSReader write(String name, int from, int to, int step, double lng)
+        throws IOException
+    {
+        String file = new File(tmp.getRoot(), name).getPath();
+        BCSWriter writer = new BCSWriter(KEY, VALUE, file);
+        for (int cid = from; cid < to; cid += step) {
+            writer.append(new Object[]{1, cid}, new Object[]{lng, Double.isNaN(lng) ? lng : cid});
+        }
+        writer.close();
+        return new BCSReader(KEY, VALUE, file);
+    }
+
+    private BCSReader merge(BCSMerge merge, long expected) throws IOException {
+        String file = new File(tmp.getRoot(), "merged.bcs").getPath();
+        assertEquals(expected, merge.merge(new BCSWriter(KEY, VALUE, file)));
+        return new BCSReader(KEY, VALUE, file);
+    }
+
+    @Test
+    public void newestInputWins() throws IOException {
+        // every cid in base, every 2nd in the first update, every 3rd in the second
+        BCSReader base = write("base.bcs", 0, 3000, 1, 1d);
+        BCSReader even = write("even.bcs", 0, 3000, 2, 2d);
+        BCSReader third = write("third.bcs", 0, 3000, 3, 3d);
+        BCSReader merged = merge(new BCSMerge(
+            new BCSReader[]{third, base, even}, new int[]{3, 1, 2}), 3000);
+        for (int cid = 0; cid < 3000; cid++) {
+            final double lng = cid % 3 == 0 ? 3d : (cid % 2 == 0 ? 2d : 1d);
+            assertArrayEquals(new Object[]{lng, (double) cid}, merged.get(1, cid));
+        }
+        assertEquals(3000, merged.getAll(1).length);
+    }
+
+    @Test
+    public void tombstonesAreDropped() throws IOException {
+        BCSReader base = write("base.bcs", 0, 3000, 1, 1d);
+        BCSReader deleted = write("deleted.bcs", 0, 3000, 10, Double.NaN);
+        // a tombstone below a newer insert does not delete it
+        BCSReader readded = write("readded.bcs", 0, 3000, 100, 5d);
+        BCSReader merged = merge(new BCSMerge(
+            new BCSReader[]{base, deleted, readded}, new int[]{1, 2, 3}), 3000 - 300 + 30);
+        for (int cid = 0; cid < 3000; cid++) {
+            final Object[] value = merged.get(1, cid);
+            if (cid % 100 == 0) {
+                assertArrayEquals(new Object[]{5d, (double) cid}, value);
+            } else if (cid % 10 == 0) {
+                assertNull(value);
+            } else {
+                assertArrayEquals(new Object[]{1d, (double) cid}, value);
+            }
+        }
+        for (BCSReader.BlockEntry e : merged.getAll(1)) {
+            assertTrue(!OverlayStack.isTombstone(e.value));
+        }
+    }
+
+    @Test
+    public void overlayKeepsTombstones() throws IOException {
+        BCSReader base = write("base.bcs", 0, 1000, 1, 1d);
+        BCSReader deleted = write("deleted.bcs", 0, 1000, 10, Double.NaN);
+        BCSMerge merge = new BCSMerge(new BCSReader[]{base, deleted}, new int[]{1, 2});
+        merge.setKeepTombstones(true);
+        BCSReader merged = merge(merge, 1000);
+        assertTrue(OverlayStack.isTombstone(merged.get(1, 20)));
+        assertArrayEquals(new Object[]{1d, 21d}, merged.get(1, 21));
+    }
+
+    @Test
+    public void valuesAreConverted() throws IOException {
+        BCSReader base = write("base.bcs", 0, 1000, 1, 12.5);
+        String file = new File(tmp.getRoot(), "fixed.bcs").getPath();
+        Class<?>[] fixed = new Class<?>[]{FixedPoint.class, FixedPoint.class};
+        new BCSMerge(new BCSReader[]{base}, new int[]{1})
+            .merge(new BCSWriter(KEY, fixed, file));
+        BCSReader merged = new BCSReader(KEY, fixed, file);
+        Object[] value = merged.get(1, 7);
+        assertEquals(12.5, (Double) value[0], 1e-6);
+        assertEquals(7d, (Double) value[1], 1e-6);
+    }
+
+}
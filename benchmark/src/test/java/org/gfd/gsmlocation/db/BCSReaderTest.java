@@ -0,0 +1,190 @@
+package org.gfd.gsmlocation.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Delivery order and the in-flight window of {@link BCSReader#parallelScan}.
+ */
+public class BCSReaderTest {
+
+    private static final Class<?>[] KEY = new Class<?>[]{Integer.class, Integer.class};
+    private static final Class<?>[] VALUE = new Class<?>[]{Integer.class};
+
+    private static final int LACS = 10;
+    private static final int CIDS = 1000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private ExecutorService executor;
+    private String file;
+
+    @Before
+    public void setUp() throws IOException {
+        executor = Executors.newFixedThreadPool(8);
+        file = new File(tmp.getRoot(), "scan.bcs").getPath();
+        BCSWriter writer = new BCSWriter(KEY, VALUE, file);
+        for (int lac = 0; lac < LACS; lac++) {
+            for (int cid = 0; cid < CIDS; cid++) {
+                writer.append(new Object[]{lac, cid}, new Object[]{lac * 31 + cid * 17});
+            }
+        }
+        writer.close();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A reader whose first task is slow and that tracks the tasks started
+     * but not yet delivered.
+     */
+    private static class TrackingReader extends BCSReader {
+        final AtomicInteger open = new AtomicInteger();
+        final AtomicInteger maxOpen = new AtomicInteger();
+        volatile int slowBlock = -1;
+
+        TrackingReader(String file) throws IOException {
+            super(KEY, VALUE, file);
+        }
+
+        @Override
+        protected BlockEntry[] scanBlocks(int first, int count, byte[][] key)
+            throws IOException
+        {
+            final int n = open.incrementAndGet();
+            int max;
+            while ((max = maxOpen.get()) < n && !maxOpen.compareAndSet(max, n)) {}
+            if (first == slowBlock) {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            return super.scanBlocks(first, count, key);
+        }
+    }
+
+    /**
+     * Records the delivered ranges.
+     */
+    private static class Recorder implements BCSReader.ScanCollector {
+        final TrackingReader reader;
+        final List<Integer> firstBlocks = new ArrayList<Integer>();
+        final List<BCSReader.BlockEntry> entries = new ArrayList<BCSReader.BlockEntry>();
+
+        Recorder(TrackingReader reader) {
+            this.reader = reader;
+        }
+
+        public void collect(int firstBlock, BCSReader.BlockEntry[] es) {
+            reader.open.decrementAndGet();
+            firstBlocks.add(firstBlock);
+            for (BCSReader.BlockEntry e : es) {
+                entries.add(e);
+            }
+        }
+    }
+
+    @Test
+    public void orderedScanDeliversInKeyOrder() throws IOException {
+        TrackingReader reader = new TrackingReader(file);
+        reader.slowBlock = 0;
+        Recorder recorder = new Recorder(reader);
+        long n = reader.parallelScan(executor, 4, 1, true, recorder);
+        assertEquals(LACS * CIDS, n);
+        assertEquals(LACS * CIDS, recorder.entries.size());
+        for (int i = 0; i < recorder.entries.size(); i++) {
+            assertArrayEquals(new Object[]{i / CIDS, i % CIDS}, recorder.entries.get(i).key);
+        }
+        for (int i = 1; i < recorder.firstBlocks.size(); i++) {
+            assertTrue(recorder.firstBlocks.get(i - 1) < recorder.firstBlocks.get(i));
+        }
+        reader.close();
+    }
+
+    @Test
+    public void unorderedScanDeliversCompletedTasksFirst() throws IOException {
+        TrackingReader reader = new TrackingReader(file);
+        reader.slowBlock = 0;
+        Recorder recorder = new Recorder(reader);
+        long n = reader.parallelScan(executor, 4, 1, false, recorder);
+        assertEquals(LACS * CIDS, n);
+        // the slow first block is overtaken by the other tasks of the window
+        assertTrue(recorder.firstBlocks.get(0) != 0);
+        assertTrue(recorder.firstBlocks.contains(0));
+        HashSet<List<Object>> keys = new HashSet<List<Object>>();
+        for (BCSReader.BlockEntry e : recorder.entries) {
+            keys.add(java.util.Arrays.asList(e.key));
+        }
+        assertEquals(LACS * CIDS, keys.size());
+        reader.close();
+    }
+
+    @Test
+    public void windowBoundsTheTasksInFlight() throws IOException {
+        for (boolean ordered : new boolean[]{true, false}) {
+            TrackingReader reader = new TrackingReader(file);
+            reader.slowBlock = 0;
+            Recorder recorder = new Recorder(reader);
+            reader.parallelScan(executor, 2, 1, ordered, recorder);
+            assertTrue(reader.maxOpen.get() <= 2);
+            assertEquals(2, reader.maxOpen.get());
+            reader.close();
+        }
+    }
+
+    @Test
+    public void prefixScan() throws IOException {
+        TrackingReader reader = new TrackingReader(file);
+        Recorder recorder = new Recorder(reader);
+        assertEquals(CIDS, reader.parallelScan(executor, 3, 2, true, recorder, 7));
+        for (int i = 0; i < CIDS; i++) {
+            assertArrayEquals(new Object[]{7, i}, recorder.entries.get(i).key);
+        }
+        assertEquals(0, reader.parallelScan(executor, 3, 2, true, recorder, LACS));
+        reader.close();
+    }
+
+    @Test
+    public void invalidArgumentsFailBeforeAnyRead() throws IOException {
+        TrackingReader reader = new TrackingReader(file);
+        reader.resetStats();
+        try {
+            // an absent prefix must not hide the error
+            reader.parallelScan(executor, 0, 1, true, new Recorder(reader), LACS);
+            fail("window 0 accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            reader.parallelScan(executor, 1, 0, false, new Recorder(reader), 3);
+            fail("blocksPerTask 0 accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(0, reader.getStats().blocksRead);
+        assertEquals(0, reader.getStats().searches);
+        reader.close();
+    }
+
+}
@@ -0,0 +1,137 @@
+package org.gfd.gsmlocation.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Round trip of {@link BCSWriter} files through {@link BCSReader}.
+ */
+public class BCSWriterTest {
+
+    private static final Class<?>[] KEY = new Class<?>[]{Integer.class, Long.class};
+    private static final Class<?>[] VALUE = new Class<?>[]{Double.class, Double.class};
+
+    private static final int LACS = 20;
+    private static final int CIDS = 300;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static Object[] key(int lac, int cid) {
+        return new Object[]{lac, 70000l * cid + lac};
+    }
+
+    private static Object[] value(int lac, int cid) {
+        return new Object[]{lac + cid / 1000d, -lac - cid / 7d};
+    }
+
+    private BCSReader write() throws IOException {
+        String file = new File(tmp.getRoot(), "cells.bcs").getPath();
+        BCSWriter writer = new BCSWriter(KEY, VALUE, file);
+        for (int lac = 0; lac < LACS; lac++) {
+            for (int cid = 0; cid < CIDS; cid++) {
+                writer.append(key(lac, cid), value(lac, cid));
+            }
+        }
+        assertEquals(LACS * CIDS, writer.getEntryCount());
+        writer.close();
+        assertFalse(new File(file + ".blocks").exists());
+        return new BCSReader(KEY, VALUE, file);
+    }
+
+    @Test
+    public void lookup() throws IOException {
+        BCSReader reader = write();
+        for (int lac = 0; lac < LACS; lac++) {
+            for (int cid = 0; cid < CIDS; cid++) {
+                assertArrayEquals(value(lac, cid), reader.get(key(lac, cid)));
+            }
+        }
+        assertNull(reader.get(3, 70000l * 3 + 4));
+        assertNull(reader.get(LACS, 0l));
+        reader.close();
+    }
+
+    @Test
+    public void getAll() throws IOException {
+        BCSReader reader = write();
+        for (int lac = 0; lac < LACS; lac++) {
+            BCSReader.BlockEntry[] entries = reader.getAll(lac);
+            assertEquals(CIDS, entries.length);
+            for (int cid = 0; cid < CIDS; cid++) {
+                assertArrayEquals(key(lac, cid), entries[cid].key);
+                assertArrayEquals(value(lac, cid), entries[cid].value);
+            }
+        }
+        reader.close();
+    }
+
+    @Test
+    public void cursor() throws IOException {
+        BCSReader reader = write();
+        BCSReader.Cursor cursor = reader.cursor();
+        for (int lac = 0; lac < LACS; lac++) {
+            for (int cid = 0; cid < CIDS; cid++) {
+                assertTrue(cursor.next());
+                assertArrayEquals(key(lac, cid), new Object[]{
+                    reader.bytes2type(Integer.class, cursor.key[0]),
+                    reader.bytes2type(Long.class, cursor.key[1])});
+                assertArrayEquals(value(lac, cid), new Object[]{
+                    reader.bytes2type(Double.class, cursor.value[0]),
+                    reader.bytes2type(Double.class, cursor.value[1])});
+            }
+        }
+        assertFalse(cursor.next());
+        reader.close();
+    }
+
+    @Test
+    public void entriesSpanSeveralBlocks() throws IOException {
+        BCSReader reader = write();
+        assertTrue(reader.blockCount > 1);
+        // the last entry of every block and the first of the next one
+        for (int b = 0; b + 1 < reader.blockCount; b++) {
+            BCSReader.BlockMeta meta = reader.getBlockMeta(b);
+            BCSReader.BlockMeta next = reader.getBlockMeta(b + 1);
+            Object[] last = new Object[]{
+                reader.bytes2type(Integer.class, meta.keyHigh[0]),
+                reader.bytes2type(Long.class, meta.keyHigh[1])};
+            Object[] first = new Object[]{
+                reader.bytes2type(Integer.class, next.keyLow[0]),
+                reader.bytes2type(Long.class, next.keyLow[1])};
+            assertTrue(reader.get(last) != null);
+            assertTrue(reader.get(first) != null);
+        }
+        reader.close();
+    }
+
+    @Test
+    public void keysMustAscend() throws IOException {
+        BCSWriter writer =
+            new BCSWriter(KEY, VALUE, new File(tmp.getRoot(), "bad.bcs").getPath());
+        writer.append(key(1, 2), value(1, 2));
+        try {
+            writer.append(key(1, 2), value(1, 2));
+            fail("duplicate key accepted");
+        } catch (IOException expected) {
+        }
+        try {
+            writer.append(key(1, 1), value(1, 1));
+            fail("descending key accepted");
+        } catch (IOException expected) {
+        }
+        writer.close();
+    }
+
+}
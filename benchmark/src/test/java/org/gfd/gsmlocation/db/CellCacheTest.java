@@ -0,0 +1,164 @@
+package org.gfd.gsmlocation.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Behaviour of the {@link CellCache} table: probing and backward shift
+ * deletion, the miss marker, expiry and TinyLFU admission.
+ */
+public class CellCacheTest {
+
+    private static final String NOT_FOUND = new String("not found");
+
+    private static final long H = CellCache.hi(TowerReader.RADIO_GSM, 262, 1);
+
+    /**
+     * Find low key halves that land in the same segment and the same home
+     * slot as the first one, so every key probes past the previous ones.
+     * @param cache The cache.
+     * @param count The number of keys.
+     * @return The low key halves.
+     */
+    private static long[] colliding(CellCache<String> cache, int count) {
+        long[] keys = new long[count];
+        int n = 0;
+        int segment = -1;
+        int home = -1;
+        for (long l = 0; n < count; l++) {
+            final int hash = CellCache.home(H, l);
+            final CellCache.Segment s = cache.segment(hash);
+            final int seg = (hash >>> 28) & (CellCache.SEGMENTS - 1);
+            if (n == 0) {
+                segment = seg;
+                home = hash & s.mask;
+            } else if (seg != segment || (hash & s.mask) != home) {
+                continue;
+            }
+            keys[n++] = l;
+        }
+        return keys;
+    }
+
+    /**
+     * Find a low key half in the same segment as another one.
+     * @param other The other low key half.
+     * @param from The first candidate.
+     * @return The low key half.
+     */
+    private static long sameSegment(long other, long from) {
+        final int segment = CellCache.home(H, other) >>> 28;
+        for (long l = from; ; l++) {
+            if (l != other && CellCache.home(H, l) >>> 28 == segment) return l;
+        }
+    }
+
+    @Test
+    public void putGetUnderCollisions() {
+        CellCache<String> cache = new CellCache<String>(16 * 8, NOT_FOUND);
+        long[] keys = colliding(cache, 4);
+        for (int i = 0; i < keys.length; i++) {
+            assertTrue(cache.put(H, keys[i], "cell" + i, 0));
+        }
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals("cell" + i, cache.get(H, keys[i]));
+        }
+        assertTrue(cache.put(H, keys[2], "replaced", 0));
+        assertEquals("replaced", cache.get(H, keys[2]));
+        assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void deleteShiftsTheProbeSequenceBack() {
+        CellCache<String> cache = new CellCache<String>(16 * 8, NOT_FOUND);
+        long[] keys = colliding(cache, 5);
+        cache.put(H, keys[0], "cell0", 0);
+        cache.put(H, keys[1], NOT_FOUND, 0);
+        cache.put(H, keys[2], "cell2", 0);
+        cache.put(H, keys[3], NOT_FOUND, 0);
+        cache.put(H, keys[4], "cell4", 0);
+        cache.evictMisses();
+        assertEquals(3, cache.size());
+        // the hits behind the removed slots must still be reachable
+        assertEquals("cell0", cache.get(H, keys[0]));
+        assertEquals("cell2", cache.get(H, keys[2]));
+        assertEquals("cell4", cache.get(H, keys[4]));
+        assertNull(cache.get(H, keys[1]));
+        assertNull(cache.get(H, keys[3]));
+        // a freed slot is reused
+        assertTrue(cache.put(H, keys[1], "cell1", 0));
+        assertEquals("cell1", cache.get(H, keys[1]));
+        assertEquals("cell4", cache.get(H, keys[4]));
+    }
+
+    @Test
+    public void missMarker() {
+        CellCache<String> cache = new CellCache<String>(128, NOT_FOUND);
+        cache.put(262, 1, 4711, 42, NOT_FOUND, 0);
+        cache.put(262, 1, 4712, 42, "cell", 0);
+        assertSame(NOT_FOUND, cache.get(262, 1, 4711, 42));
+        assertNull(cache.get(262, 2, 4711, 42));
+        CellCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.served(CellCache.MISS));
+        assertEquals(0, stats.served(CellCache.HIT));
+        assertEquals(1, stats.absent);
+        cache.evictMisses();
+        assertNull(cache.get(262, 1, 4711, 42));
+        assertEquals("cell", cache.get(262, 1, 4712, 42));
+    }
+
+    @Test
+    public void expiry() throws InterruptedException {
+        CellCache<String> cache = new CellCache<String>(128, NOT_FOUND);
+        long[] keys = colliding(cache, 3);
+        cache.put(H, keys[0], "short", 1);
+        cache.put(H, keys[1], NOT_FOUND, 1);
+        cache.put(H, keys[2], "forever", 0);
+        Thread.sleep(20);
+        assertNull(cache.get(H, keys[0]));
+        assertNull(cache.get(H, keys[1]));
+        // the expired entries in front of it were removed with a backward shift
+        assertEquals("forever", cache.get(H, keys[2]));
+        assertEquals(1, cache.size());
+        CellCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.expired(CellCache.HIT));
+        assertEquals(1, stats.expired(CellCache.MISS));
+    }
+
+    @Test
+    public void admissionRejectsOneHitKey() {
+        // one entry per segment
+        CellCache<String> cache = new CellCache<String>(CellCache.SEGMENTS, NOT_FOUND);
+        final long frequent = 0;
+        final long oneHit = sameSegment(frequent, 1);
+        for (int i = 0; i < 5; i++) {
+            assertNull(cache.get(H, frequent));
+        }
+        assertTrue(cache.put(H, frequent, "frequent", 0));
+        assertFalse(cache.put(H, oneHit, "one hit", 0));
+        assertEquals("frequent", cache.get(H, frequent));
+        assertNull(cache.get(H, oneHit));
+        assertEquals(1, cache.getStats().rejected(CellCache.HIT));
+    }
+
+    @Test
+    public void admissionEvictsOneHitKey() {
+        CellCache<String> cache = new CellCache<String>(CellCache.SEGMENTS, NOT_FOUND);
+        final long oneHit = 0;
+        final long frequent = sameSegment(oneHit, 1);
+        assertTrue(cache.put(H, oneHit, "one hit", 0));
+        for (int i = 0; i < 5; i++) {
+            assertNull(cache.get(H, frequent));
+        }
+        assertTrue(cache.put(H, frequent, "frequent", 0));
+        assertEquals("frequent", cache.get(H, frequent));
+        assertNull(cache.get(H, oneHit));
+        assertEquals(1, cache.getStats().evicted(CellCache.HIT));
+    }
+
+}
@@ -0,0 +1,301 @@
+package org.gfd.gsmlocation.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Round trips of the tower database formats through {@link TowerWriter} and
+ * the typed {@link TowerReader} accessors.
+ */
+public class TowerReaderTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String file(String name) {
+        return new File(tmp.getRoot(), name).getPath();
+    }
+
+    /**
+     * Collect all rows of a file.
+     * @param reader The reader.
+     * @return One (radio, lac, cid, mcc, mnc, lng, lat) array per row.
+     */
+    private static List<Object[]> scan(TowerReader reader) throws IOException {
+        final ArrayList<Object[]> rows = new ArrayList<Object[]>();
+        // a small batch, so rows span several batches
+        reader.scan(new TowerReader.Batch(3), 1, new TowerReader.BatchConsumer() {
+            public void accept(TowerReader.Batch b) {
+                for (int i = 0; i < b.size; i++) {
+                    rows.add(new Object[]{
+                        b.radio[i], b.lac[i], b.cid[i], b.mcc[i], b.mnc[i], b.lng[i], b.lat[i]});
+                }
+            }
+        });
+        return rows;
+    }
+
+    private static void assertLookup(
+        TowerReader reader, int lac, int cid, int mcc, int mnc, double lng, double lat
+    ) throws IOException {
+        final double[] lngLat = new double[2];
+        assertTrue(reader.lookup(lac, cid, mcc, mnc, lngLat));
+        assertEquals(lng, lngLat[0], 0d);
+        assertEquals(lat, lngLat[1], 0d);
+    }
+
+    @Test
+    public void fixedPointEncoding() {
+        assertEquals(1800000000, FixedPoint.encode(180d));
+        assertEquals(-1800000000, FixedPoint.encode(-180d));
+        assertEquals(Integer.MIN_VALUE, FixedPoint.encode(Double.NaN));
+        assertTrue(Double.isNaN(FixedPoint.decode(Integer.MIN_VALUE)));
+        assertEquals(180d, FixedPoint.decode(FixedPoint.encode(179.99999996)), 0d);
+        assertEquals(-180d, FixedPoint.decode(FixedPoint.encode(-179.99999996)), 0d);
+        assertEquals(13.1234567, FixedPoint.decode(FixedPoint.encode(13.12345674)), 0d);
+        assertEquals(13.1234568, FixedPoint.decode(FixedPoint.encode(13.12345676)), 0d);
+    }
+
+    @Test
+    public void fixedPointRoundTrip() throws IOException {
+        final String f = file("fixed.bcs");
+        TowerWriter writer = new TowerWriter(TowerReader.FORMAT_FIXED, f);
+        writer.append(1, 10, 262, 1, 180d, 90d);
+        writer.append(1, 11, 262, 1, -180d, -90d);
+        writer.append(1, 12, 262, 1, 179.99999996, -89.99999994);
+        writer.append(1, 13, 262, 1, 13.12345674, 52.5);
+        writer.append(1, 14, 262, 1, Double.NaN, Double.NaN);
+        writer.close();
+
+        TowerReader reader = new TowerReader(TowerReader.FORMAT_FIXED, f);
+        assertLookup(reader, 1, 10, 262, 1, 180d, 90d);
+        assertLookup(reader, 1, 11, 262, 1, -180d, -90d);
+        assertLookup(reader, 1, 12, 262, 1, 180d, -89.9999999);
+        assertLookup(reader, 1, 13, 262, 1, 13.1234567, 52.5);
+        assertArrayEquals(new Object[]{1, 11, 262, 1}, reader.find(1, 11, 262, null)[0].key);
+        assertArrayEquals(new Object[]{-180d, -90d}, reader.find(1, 11, null, 1)[0].value);
+
+        List<Object[]> rows = scan(reader);
+        assertEquals(5, rows.size());
+        assertArrayEquals(
+            new Object[]{TowerReader.RADIO_GSM, 1, 12l, 262, 1, 180d, -89.9999999}, rows.get(2));
+        reader.close();
+    }
+
+    @Test
+    public void tombstonesAreStoredAsMinValue() throws IOException {
+        final String f = file("tombstone.bcs");
+        TowerWriter writer = new TowerWriter(TowerReader.FORMAT_FIXED, f);
+        writer.append(1, 14, 262, 1, Double.NaN, Double.NaN);
+        writer.close();
+
+        BCSReader raw = new BCSReader(TowerReader.KEY_TYPES,
+            new Class<?>[]{Integer.class, Integer.class}, f);
+        assertArrayEquals(new Object[]{Integer.MIN_VALUE, Integer.MIN_VALUE},
+            raw.get(1, 14, 262, 1));
+        raw.close();
+
+        TowerReader reader = new TowerReader(TowerReader.FORMAT_FIXED, f);
+        final double[] lngLat = new double[2];
+        assertTrue(reader.lookup(1, 14, 262, 1, lngLat));
+        assertTrue(Double.isNaN(lngLat[0]) && Double.isNaN(lngLat[1]));
+        assertTrue(OverlayStack.isTombstone(reader.find(1, 14, 262, null)[0].value));
+        assertTrue(Double.isNaN((Double) scan(reader).get(0)[5]));
+        reader.close();
+    }
+
+    /**
+     * A dictionary of 40000 operators, code i is mcc 200 + i / 1000, mnc
+     * i % 1000, followed by a single operator of mcc 500.
+     */
+    private static OperatorDictionary manyOperators() {
+        long[] operators = new long[40001];
+        for (int i = 0; i < 40000; i++) {
+            operators[i] = OperatorDictionary.pack(200 + i / 1000, i % 1000);
+        }
+        operators[40000] = OperatorDictionary.pack(500, 7);
+        return new OperatorDictionary(operators);
+    }
+
+    @Test
+    public void operatorDictionary() throws IOException {
+        OperatorDictionary operators = manyOperators();
+        assertEquals(40001, operators.size());
+        assertEquals(0x8000, operators.code(232, 768));
+        assertEquals(232, operators.mcc(0x8000));
+        assertEquals(768, operators.mnc(0x8000));
+        assertEquals(-1, operators.code(232, 1000));
+        assertEquals(32000, operators.first(232));
+        assertEquals(33000, operators.last(232));
+        // no operators: an empty range at the insertion point
+        assertEquals(40000, operators.first(300));
+        assertEquals(40000, operators.last(300));
+        assertEquals(0, operators.first(100));
+        assertEquals(0, operators.last(100));
+        assertEquals(40001, operators.first(600));
+        assertEquals(40001, operators.last(600));
+        assertTrue(operators.sameCodes(OperatorDictionary.fromBytes(operators.toBytes())));
+    }
+
+    @Test
+    public void operatorCodesAboveTheShortRange() throws IOException {
+        final OperatorDictionary operators = manyOperators();
+        final int[] codes = new int[]{0, 0x7fff, 0x8000, 0x8001, 39999, 40000};
+        final String f = file("operators.bcs");
+        TowerWriter writer = new TowerWriter(TowerReader.FORMAT_OPERATOR, f, operators);
+        for (int cid = 5; cid <= 6; cid++) {
+            for (int code : codes) {
+                writer.append(1, cid, operators.mcc(code), operators.mnc(code), code / 1000d, cid);
+            }
+        }
+        writer.close();
+
+        TowerReader reader = new TowerReader(TowerReader.FORMAT_OPERATOR, f);
+        assertTrue(operators.sameCodes(reader.getOperators()));
+        for (int code : codes) {
+            assertLookup(reader, 1, 5, operators.mcc(code), operators.mnc(code), code / 1000d, 5);
+        }
+        final double[] lngLat = new double[2];
+        assertFalse(reader.lookup(1, 5, 232, 770, lngLat));
+        assertFalse(reader.lookup(1, 5, 999, 1, lngLat));
+
+        BCSReader.BlockEntry[] all = reader.find(1, 6, null, null);
+        assertEquals(codes.length, all.length);
+        for (int i = 0; i < codes.length; i++) {
+            assertArrayEquals(new Object[]{1, 6, operators.mcc(codes[i]), operators.mnc(codes[i])},
+                all[i].key);
+        }
+        // mcc 232 spans 0x7fff to 0x8001, the codes must be read back unsigned
+        BCSReader.BlockEntry[] country = reader.find(1, 6, 232, null);
+        assertEquals(3, country.length);
+        assertArrayEquals(new Object[]{1, 6, 232, 767}, country[0].key);
+        assertArrayEquals(new Object[]{1, 6, 232, 768}, country[1].key);
+        assertArrayEquals(new Object[]{1, 6, 232, 769}, country[2].key);
+        assertArrayEquals(new Object[]{1, 6, 232, 768}, reader.find(1, 6, null, 768)[0].key);
+        assertEquals(1, reader.find(1, 6, 239, null).length);
+        assertEquals(1, reader.find(1, 6, 500, null).length);
+        // mcc without operators: empty code range, no read
+        assertNull(reader.find(1, 6, 300, null));
+        assertNull(reader.find(1, 6, 600, null));
+        assertEquals(0, reader.find(1, 6, 210, null).length);
+
+        List<Object[]> rows = scan(reader);
+        assertEquals(2 * codes.length, rows.size());
+        for (int i = 0; i < codes.length; i++) {
+            assertEquals(operators.mcc(codes[i]), rows.get(i)[3]);
+            assertEquals(operators.mnc(codes[i]), rows.get(i)[4]);
+        }
+        reader.close();
+    }
+
+    @Test
+    public void wideCellIds() throws IOException {
+        final OperatorDictionary operators = new OperatorDictionary(new long[]{
+            OperatorDictionary.pack(262, 1), OperatorDictionary.pack(262, 2)});
+        final long gsm = 0xfffffff0l;
+        final long lte = (1l << 28) - 1;
+        final long nr = (1l << 35) + 5;
+        final String f = file("radio.bcs");
+        TowerWriter writer = new TowerWriter(TowerReader.FORMAT_RADIO, f, operators);
+        writer.append(TowerReader.RADIO_GSM, 7, gsm, 262, 1, 1d, 2d);
+        writer.append(TowerReader.RADIO_LTE, 7, lte, 262, 1, 3d, 4d);
+        writer.append(TowerReader.RADIO_NR, 7, 5, 262, 1, 5d, 6d);
+        writer.append(TowerReader.RADIO_NR, 7, nr, 262, 1, 7d, 8d);
+        writer.append(TowerReader.RADIO_NR, 7, nr, 262, 2, 9d, 10d);
+        writer.append(TowerReader.RADIO_NR, 0xffffff, nr + 1, 262, 2, 11d, 12d);
+        writer.close();
+
+        TowerReader reader = new TowerReader(TowerReader.FORMAT_RADIO, f);
+        final double[] lngLat = new double[2];
+        assertTrue(reader.lookup(TowerReader.RADIO_NR, 7, nr, 262, 2, lngLat));
+        assertArrayEquals(new double[]{9d, 10d}, lngLat, 0d);
+        // the same id of another radio, or truncated to 32 bit, is another cell
+        assertFalse(reader.lookup(TowerReader.RADIO_LTE, 7, nr, 262, 2, lngLat));
+        assertFalse(reader.lookup(TowerReader.RADIO_NR, 7, nr & 0xffffffffl, 262, 2, lngLat));
+        assertFalse(reader.lookup(256, 7, nr, 262, 2, lngLat));
+        // the int overload is GSM with an unsigned cid
+        assertTrue(reader.lookup(7, (int) gsm, 262, 1, lngLat));
+        assertArrayEquals(new double[]{1d, 2d}, lngLat, 0d);
+
+        BCSReader.BlockEntry[] be = reader.find(TowerReader.RADIO_NR, 7, nr, null, null);
+        assertEquals(2, be.length);
+        assertArrayEquals(new Object[]{7, nr, 262, 1}, be[0].key);
+        assertArrayEquals(new Object[]{7, nr, 262, 2}, be[1].key);
+        assertArrayEquals(new Object[]{7, lte, 262, 1},
+            reader.find(TowerReader.RADIO_LTE, 7, lte, 262, null)[0].key);
+        assertArrayEquals(new Object[]{7, (int) gsm, 262, 1},
+            reader.find(7, (int) gsm, null, 1)[0].key);
+        assertArrayEquals(new Object[]{0xffffff, nr + 1, 262, 2},
+            reader.find(TowerReader.RADIO_NR, 0xffffff, nr + 1, null, 2)[0].key);
+
+        List<Object[]> rows = scan(reader);
+        assertEquals(6, rows.size());
+        assertArrayEquals(new Object[]{TowerReader.RADIO_GSM, 7, gsm, 262, 1, 1d, 2d}, rows.get(0));
+        assertArrayEquals(new Object[]{TowerReader.RADIO_NR, 7, nr, 262, 2, 9d, 10d}, rows.get(4));
+        final long[] area = new long[1];
+        assertEquals(3, reader.scan(TowerReader.RADIO_NR, 7, new TowerReader.Batch(2),
+            new TowerReader.BatchConsumer() {
+                public void accept(TowerReader.Batch b) {
+                    area[0] += b.size;
+                }
+            }));
+        assertEquals(3, area[0]);
+        reader.close();
+    }
+
+    @Test
+    public void gsmFormatsRejectWideCells() throws IOException {
+        final OperatorDictionary operators =
+            new OperatorDictionary(new long[]{OperatorDictionary.pack(262, 1)});
+        final int[] formats = new int[]{
+            TowerReader.FORMAT_DOUBLE, TowerReader.FORMAT_FIXED, TowerReader.FORMAT_OPERATOR};
+        for (int format : formats) {
+            final String f = file("gsm-" + format + ".bcs");
+            TowerWriter writer = new TowerWriter(format, f, operators);
+            writer.append(7, 1, 262, 1, 1d, 2d);
+            try {
+                writer.append(TowerReader.RADIO_LTE, 7, 2, 262, 1, 1d, 2d);
+                fail("format " + format + " accepted an LTE cell");
+            } catch (IOException expected) {
+            }
+            try {
+                writer.append(TowerReader.RADIO_GSM, 7, 1l << 32, 262, 1, 1d, 2d);
+                fail("format " + format + " accepted a 33 bit cid");
+            } catch (IOException expected) {
+            }
+            writer.close();
+
+            TowerReader reader = new TowerReader(format, f);
+            final double[] lngLat = new double[2];
+            assertTrue(reader.lookup(TowerReader.RADIO_GSM, 7, 1, 262, 1, lngLat));
+            reader.resetStats();
+            assertFalse(reader.lookup(TowerReader.RADIO_LTE, 7, 1, 262, 1, lngLat));
+            assertFalse(reader.lookup(TowerReader.RADIO_GSM, 7, (1l << 32) | 1, 262, 1, lngLat));
+            assertNull(reader.find(TowerReader.RADIO_NR, 7, 1, null, null));
+            assertNull(reader.find(TowerReader.RADIO_GSM, 7, (1l << 32) | 1, null, null));
+            assertEquals(0, reader.scan(TowerReader.RADIO_LTE, 7, new TowerReader.Batch(4),
+                new TowerReader.BatchConsumer() {
+                    public void accept(TowerReader.Batch b) {
+                        fail("LTE rows in a GSM only format");
+                    }
+                }));
+            // rejected without touching the file
+            assertEquals(0, reader.getStats().blocksRead);
+            reader.close();
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+package org.gfd.gsmlocation.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+/**
+ * Checkpointed extraction of {@link XZBlockExtractor}: a killed extraction
+ * resumes with the missing blocks, the journal is validated and damaged
+ * blocks are extracted again.<br />
+ * The extraction runs on a single thread, so blocks complete in file order.
+ * Progress is reported after the journal record of a block is synced, the
+ * listeners below use that to see which blocks were decoded.
+ */
+public class XZBlockExtractorTest {
+
+    private static final int BLOCKS = 8;
+    private static final int BLOCK = 64 * 1024;
+    private static final int HEADER = 24;
+    private static final int RECORD = 8;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private byte[] data;
+    private File xz;
+    private File target;
+    private File journal;
+
+    @Before
+    public void setUp() throws IOException {
+        data = new byte[BLOCKS * BLOCK];
+        Random random = new Random(42);
+        for (int i = 0; i < data.length; i++) {
+            // compressible, but not trivially
+            data[i] = (byte) (random.nextInt(16) + (i >> 12));
+        }
+        xz = tmp.newFile("towers.bcs.xz");
+        XZOutputStream out = new XZOutputStream(new FileOutputStream(xz), new LZMA2Options(0));
+        for (int b = 0; b < BLOCKS; b++) {
+            out.write(data, b * BLOCK, BLOCK);
+            out.endBlock();
+        }
+        out.close();
+        target = new File(tmp.getRoot(), "db.bcs.tmp");
+        journal = new File(target.getPath() + ".journal");
+    }
+
+    private XZBlockExtractor open() throws IOException {
+        return new XZBlockExtractor(new RandomAccessFile(xz, "r").getChannel(), 0, xz.length());
+    }
+
+    /**
+     * Extract until a number of blocks is done, then fail like a killed process.
+     * @param blocks The number of blocks to complete.
+     */
+    private void interrupt(final int blocks) throws IOException {
+        XZBlockExtractor extractor = open();
+        try {
+            extractor.extract(target, 1, new ExtractionProgress(data.length,
+                new ExtractionProgress.Listener() {
+                    public void progress(ExtractionProgress progress) {
+                        if (progress.extracted() >= (long) blocks * BLOCK) {
+                            throw new IllegalStateException("killed");
+                        }
+                    }
+                }));
+            fail("extraction was not interrupted");
+        } catch (IOException expected) {
+        } finally {
+            extractor.close();
+        }
+        assertTrue(journal.exists());
+        assertEquals(HEADER + blocks * RECORD, journal.length());
+    }
+
+    /**
+     * Records the journal size at every progress report, one report per block.
+     */
+    private class Recorder implements ExtractionProgress.Listener {
+        final long[] journalAt = new long[BLOCKS];
+        int calls = 0;
+
+        public void progress(ExtractionProgress progress) {
+            assertEquals((long) (calls + 1) * BLOCK, progress.extracted());
+            journalAt[calls++] = journal.length();
+        }
+
+        /**
+         * Check that the first journaled blocks were reported without
+         * decoding and every other block was decoded exactly once.
+         * @param journaled The number of blocks in the resumed journal.
+         */
+        void assertDecoded(int journaled) {
+            assertEquals(BLOCKS, calls);
+            for (int i = 0; i < BLOCKS; i++) {
+                final int records = i < journaled ? journaled : i + 1;
+                assertEquals("block " + i, HEADER + records * RECORD, journalAt[i]);
+            }
+        }
+    }
+
+    private Recorder extract() throws IOException {
+        Recorder recorder = new Recorder();
+        XZBlockExtractor extractor = open();
+        try {
+            assertEquals(BLOCKS, extractor.getBlockCount());
+            extractor.extract(target, 1, new ExtractionProgress(data.length, recorder));
+        } finally {
+            extractor.close();
+        }
+        return recorder;
+    }
+
+    private void assertExtracted() throws IOException {
+        assertEquals(data.length, target.length());
+        byte[] extracted = new byte[data.length];
+        RandomAccessFile in = new RandomAccessFile(target, "r");
+        try {
+            in.readFully(extracted);
+        } finally {
+            in.close();
+        }
+        assertArrayEquals(data, extracted);
+        assertFalse(journal.exists());
+    }
+
+    @Test
+    public void extractDeletesTheJournal() throws IOException {
+        extract().assertDecoded(0);
+        assertExtracted();
+    }
+
+    @Test
+    public void resumeDecodesOnlyTheMissingBlocks() throws IOException {
+        interrupt(3);
+        extract().assertDecoded(3);
+        assertExtracted();
+    }
+
+    @Test
+    public void tornRecordIsIgnored() throws IOException {
+        interrupt(2);
+        RandomAccessFile j = new RandomAccessFile(journal, "rw");
+        try {
+            j.seek(j.length());
+            j.write(new byte[]{0, 0, 0, 5, 0x7f});
+        } finally {
+            j.close();
+        }
+        extract().assertDecoded(2);
+        assertExtracted();
+    }
+
+    @Test
+    public void foreignJournalRestarts() throws IOException {
+        interrupt(4);
+        RandomAccessFile j = new RandomAccessFile(journal, "rw");
+        try {
+            // another xz file: different compressed length
+            j.seek(16);
+            j.writeLong(xz.length() + 1);
+        } finally {
+            j.close();
+        }
+        extract().assertDecoded(0);
+        assertExtracted();
+    }
+
+    @Test
+    public void damagedBlockIsExtractedAgain() throws IOException {
+        interrupt(3);
+        RandomAccessFile t = new RandomAccessFile(target, "rw");
+        try {
+            // journaled as done, but the data did not make it to the disk
+            t.seek(BLOCK + 1234);
+            t.write(new byte[]{1, 2, 3, 4});
+        } finally {
+            t.close();
+        }
+        // the missing blocks are decoded, then the damaged block is caught by the verification
+        extract().assertDecoded(3);
+        assertExtracted();
+    }
+
+}
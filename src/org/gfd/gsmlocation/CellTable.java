@@ -0,0 +1,393 @@
+package org.gfd.gsmlocation;
+
+import org.gfd.gsmlocation.db.CellCache;
+import org.gfd.gsmlocation.model.CellInfo;
+
+/**
+ * Table of the cells seen by the provider, keyed by the packed (radio, mcc, mnc, lac, cid)
+ * tuple (see {@link CellCache#hi(int, int, int)} and {@link CellCache#lo(int, int, long)}).<br />
+ * Columns are stored as parallel primitive arrays of an open addressing table with linear
+ * probing, a cell that is seen again is updated in place. Only growing the table allocates.
+ * <br />
+ * All cells are additionally linked in the order of their last sighting. Every sighting stores
+ * the current time and measurement clock, both only move forward, so the oldest sighting is the
+ * first to pass either age limit: expiry pops cells from the old end of the list until it finds
+ * a live one and costs O(expired) instead of a scan over all cells. (A wall clock that jumps
+ * backwards can only delay the expiry of cells seen after the jump.)
+ * <br />
+ * Not thread safe, the provider only touches it from the refresh thread.
+ */
+final class CellTable {
+
+    private long[] hi;
+    private long[] lo;
+    private boolean[] used;
+    private int[] radio;
+    private int[] mcc;
+    private int[] mnc;
+    private int[] lac;
+    private long[] cid;
+    private double[] lat;
+    private double[] lng;
+    private int[] dbm;
+    private long[] seen;
+    private long[] measurement;
+    /**
+     * Sighting order links, the slot of the next older and newer cell or -1.
+     */
+    private int[] older;
+    private int[] newer;
+    /**
+     * The slot of the oldest and the newest sighting, -1 if the table is empty.
+     */
+    private int oldest = -1;
+    private int newest = -1;
+    private int mask;
+    private int size = 0;
+
+    /**
+     * Incremented whenever a cell is added, removed or moved.
+     */
+    private long version = 0;
+
+    /**
+     * Create a table.
+     * @param capacity The expected number of cells.
+     */
+    CellTable(int capacity) {
+        int slots = 4;
+        while (slots < capacity * 2) {
+            slots <<= 1;
+        }
+        allocate(slots);
+    }
+
+    private void allocate(int slots) {
+        hi = new long[slots];
+        lo = new long[slots];
+        used = new boolean[slots];
+        radio = new int[slots];
+        mcc = new int[slots];
+        mnc = new int[slots];
+        lac = new int[slots];
+        cid = new long[slots];
+        lat = new double[slots];
+        lng = new double[slots];
+        dbm = new int[slots];
+        seen = new long[slots];
+        measurement = new long[slots];
+        older = new int[slots];
+        newer = new int[slots];
+        oldest = -1;
+        newest = -1;
+        mask = slots - 1;
+    }
+
+    /**
+     * Append a slot as the newest sighting.
+     * @param slot The slot.
+     */
+    private void link(int slot) {
+        older[slot] = newest;
+        newer[slot] = -1;
+        if (newest == -1) {
+            oldest = slot;
+        } else {
+            newer[newest] = slot;
+        }
+        newest = slot;
+    }
+
+    /**
+     * Remove a slot from the sighting order.
+     * @param slot The slot.
+     */
+    private void unlink(int slot) {
+        if (older[slot] == -1) {
+            oldest = newer[slot];
+        } else {
+            newer[older[slot]] = newer[slot];
+        }
+        if (newer[slot] == -1) {
+            newest = older[slot];
+        } else {
+            older[newer[slot]] = older[slot];
+        }
+    }
+
+    /**
+     * Point the sighting order at the new slot of a moved cell.
+     * @param from The old slot, still holding the links.
+     * @param to The new slot.
+     */
+    private void relink(int from, int to) {
+        older[to] = older[from];
+        newer[to] = newer[from];
+        if (older[to] == -1) {
+            oldest = to;
+        } else {
+            newer[older[to]] = to;
+        }
+        if (newer[to] == -1) {
+            newest = to;
+        } else {
+            older[newer[to]] = to;
+        }
+    }
+
+    private static int home(long h, long l) {
+        long x = h * 0x9E3779B97F4A7C15l + l;
+        x ^= x >>> 32;
+        x *= 0x9E3779B97F4A7C15l;
+        return (int) (x ^ (x >>> 29));
+    }
+
+    /**
+     * Number of cells in the table.
+     * @return The size.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * The change counter, see {@link #toArray()}.
+     * @return The current version.
+     */
+    long version() {
+        return version;
+    }
+
+    /**
+     * Insert a cell or update it in place.
+     * @param radio The radio type, see TowerReader.RADIO_*.
+     * @param mcc The mobile country code, -1 if unknown.
+     * @param mnc The mobile network code, -1 if unknown.
+     * @param lac The location area code, -1 if unknown.
+     * @param cid The cell id, -1 if unknown.
+     * @param lng The longitude.
+     * @param lat The latitude.
+     * @param dbm The signal strength.
+     * @param seen The timestamp of the sighting.
+     * @param measurement The measurement clock of the sighting.
+     * @return The slot if the cell is new, or the complement of the slot if it was updated.
+     */
+    int put(
+        int radio, int mcc, int mnc, int lac, long cid,
+        double lng, double lat, int dbm, long seen, long measurement
+    ) {
+        if ((size + 1) * 2 > used.length) {
+            grow();
+        }
+        final long h = CellCache.hi(radio, mcc, mnc);
+        final long l = CellCache.lo(radio, lac, cid);
+        int slot = home(h, l) & mask;
+        while (used[slot]) {
+            if (hi[slot] == h && lo[slot] == l) {
+                if (this.lng[slot] != lng || this.lat[slot] != lat) {
+                    this.lng[slot] = lng;
+                    this.lat[slot] = lat;
+                    version++;
+                }
+                this.dbm[slot] = dbm;
+                this.seen[slot] = seen;
+                this.measurement[slot] = measurement;
+                if (slot != newest) {
+                    unlink(slot);
+                    link(slot);
+                }
+                return ~slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        used[slot] = true;
+        hi[slot] = h;
+        lo[slot] = l;
+        this.radio[slot] = radio;
+        this.mcc[slot] = mcc;
+        this.mnc[slot] = mnc;
+        this.lac[slot] = lac;
+        this.cid[slot] = cid;
+        this.lng[slot] = lng;
+        this.lat[slot] = lat;
+        this.dbm[slot] = dbm;
+        this.seen[slot] = seen;
+        this.measurement[slot] = measurement;
+        link(slot);
+        size++;
+        version++;
+        return slot;
+    }
+
+    private void grow() {
+        final long[] hi = this.hi;
+        final long[] lo = this.lo;
+        final boolean[] used = this.used;
+        final int[] radio = this.radio;
+        final int[] mcc = this.mcc;
+        final int[] mnc = this.mnc;
+        final int[] lac = this.lac;
+        final long[] cid = this.cid;
+        final double[] lat = this.lat;
+        final double[] lng = this.lng;
+        final int[] dbm = this.dbm;
+        final long[] seen = this.seen;
+        final long[] measurement = this.measurement;
+        final int[] newer = this.newer;
+        int i = oldest;
+        allocate(used.length * 2);
+        size = 0;
+        // reinsert in sighting order
+        for (; i != -1; i = newer[i]) {
+            put(radio[i], mcc[i], mnc[i], lac[i], cid[i],
+                lng[i], lat[i], dbm[i], seen[i], measurement[i]);
+        }
+    }
+
+    /**
+     * Remove a slot, shifting back all following entries of the probe
+     * sequence so lookups never hit a gap.
+     * @param slot The slot to clear.
+     */
+    private void remove(int slot) {
+        unlink(slot);
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (used[next]) {
+            final int home = home(hi[next], lo[next]) & mask;
+            // move the entry if its home is not within (gap, next]
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                hi[gap] = hi[next];
+                lo[gap] = lo[next];
+                radio[gap] = radio[next];
+                mcc[gap] = mcc[next];
+                mnc[gap] = mnc[next];
+                lac[gap] = lac[next];
+                cid[gap] = cid[next];
+                lat[gap] = lat[next];
+                lng[gap] = lng[next];
+                dbm[gap] = dbm[next];
+                seen[gap] = seen[next];
+                measurement[gap] = measurement[next];
+                relink(next, gap);
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        used[gap] = false;
+        size--;
+        version++;
+    }
+
+    /**
+     * Drop all cells that were last seen at or before one of the thresholds.
+     * @param measurementThreshold The measurement clock threshold.
+     * @param timeThreshold The timestamp threshold.
+     * @param tag The log tag of dropped cells, logged only if the tag is loggable at DEBUG.
+     */
+    void expire(long measurementThreshold, long timeThreshold, String tag) {
+        final boolean debug = android.util.Log.isLoggable(tag, android.util.Log.DEBUG);
+        while (oldest != -1) {
+            final int slot = oldest;
+            final boolean outdatedByAge = seen[slot] <= timeThreshold;
+            final boolean outdatedByMeasurement = measurement[slot] <= measurementThreshold;
+            if (!outdatedByAge && !outdatedByMeasurement) {
+                return;
+            }
+            if (debug) {
+                String reason = "Cell outdated ";
+                if (outdatedByMeasurement && !outdatedByAge) {
+                    reason = "Measurements reached ";
+                }
+                if (outdatedByAge && !outdatedByMeasurement) {
+                    reason = "Timeout reached ";
+                }
+                android.util.Log.d(tag, reason + toString(slot));
+            }
+            remove(slot);
+        }
+    }
+
+    /**
+     * The timestamp of the oldest sighting.
+     * @return The oldest seen timestamp, Long.MAX_VALUE if the table is empty.
+     */
+    long oldestSeen() {
+        return oldest == -1 ? Long.MAX_VALUE : seen[oldest];
+    }
+
+    /**
+     * Add the distinct known mobile country codes of all cells.
+     * @param countries The codes collected so far, at least {@link #size()} longer than n.
+     * @param n The number of codes collected so far.
+     * @return The new number of codes.
+     */
+    int countries(int[] countries, int n) {
+        for (int i = 0; i < used.length; i++) {
+            if (!used[i] || mcc[i] <= 0) continue;
+            int j = 0;
+            while (j < n && countries[j] != mcc[i]) j++;
+            if (j == n) countries[n++] = mcc[i];
+        }
+        return n;
+    }
+
+    /**
+     * Retrieve the mobile country code of a cell.
+     * @param cid The cell id.
+     * @param lac The location area code.
+     * @return The first known code of a matching cell, 0 if there is none.
+     */
+    int country(long cid, int lac) {
+        for (int i = 0; i < used.length; i++) {
+            if (used[i] && mcc[i] > 0 && this.cid[i] == cid && this.lac[i] == lac) {
+                return mcc[i];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Copy the table into CellInfo instances.
+     * @return All cells.
+     */
+    CellInfo[] toArray() {
+        final CellInfo[] cells = new CellInfo[size];
+        int n = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (!used[i]) continue;
+            final CellInfo ci = new CellInfo();
+            ci.radio = radio[i];
+            ci.MCC = mcc[i];
+            ci.MNC = mnc[i];
+            ci.LAC = lac[i];
+            ci.CID = cid[i];
+            ci.lat = lat[i];
+            ci.lng = lng[i];
+            ci.dbm = dbm[i];
+            ci.seen = seen[i];
+            ci.measurement = measurement[i];
+            cells[n++] = ci;
+        }
+        return cells;
+    }
+
+    /**
+     * Describe a cell like {@link CellInfo#toString()}.
+     * @param slot The slot of the cell.
+     * @return The description.
+     */
+    String toString(int slot) {
+        return "CellInfo(" +
+                "radio=" + radio[slot] +
+                ", MCC=" + mcc[slot] +
+                ", MNC=" + mnc[slot] +
+                ", CID=" + cid[slot] +
+                ", LAC=" + lac[slot] +
+                ", dbm=" + dbm[slot] +
+                ", lng=" + lng[slot] +
+                ", lat=" + lat[slot] +
+                ')';
+    }
+
+}
@@ -1,17 +1,23 @@
 package org.gfd.gsmlocation;
 
-import java.util.ArrayList;
-import java.util.HashSet;
+import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.gfd.gsmlocation.db.CellTowerDatabase;
+import org.gfd.gsmlocation.db.TowerReader;
 import org.gfd.gsmlocation.model.CellInfo;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.telephony.CellIdentityGsm;
+import android.telephony.CellIdentityLte;
 import android.telephony.CellIdentityWcdma;
 import android.telephony.CellInfoGsm;
+import android.telephony.CellInfoLte;
 import android.telephony.CellInfoWcdma;
 import android.telephony.CellLocation;
 import android.telephony.NeighboringCellInfo;
@@ -91,161 +97,188 @@ public class CellbasedLocationProvider {
     private CellTowerDatabase db = CellTowerDatabase.getInstance();
 
     /**
-     * List of cells that were recently available and can be resolved (aka long/lat is set)
+     * Cells that were recently available and can be resolved (aka long/lat is set)
      */
-    private HashSet<CellInfo> recentCells = new HashSet<CellInfo>(17);
+    private final CellTable recentCells = new CellTable(16);
     /**
-     * List of recent cells that were available but could not be resolved.
+     * Recent cells that were available but could not be resolved.
      */
-    private HashSet<CellInfo> unusedCells = new HashSet<CellInfo>(17);
+    private final CellTable unusedCells = new CellTable(16);
 
     /**
      * The current cell location, needed on signal strength change.
      */
-    private GsmCellLocation location = null;
+    private volatile GsmCellLocation location = null;
 
     /**
      * Update the internal list of unused (unresolved) cells.
-     * @param ci The cell information.
-     */
-    private final void pushUnusedCells(CellInfo ci) {
-        ci.sanitize();
-        if (ci.isInvalid()) return ;
-        synchronized (unusedCells) {
-            boolean isNew = !unusedCells.remove(ci);
-            ci.seen = System.currentTimeMillis();
-            ci.measurement = measurement.get();
-            unusedCells.add(ci);
-            if (isNew)
-                android.util.Log.d("LNLP/Cell/Unresolved", ci.toString());
-        }
+     * @param radio The radio type, see TowerReader.RADIO_*.
+     * @param mcc The mobile country code, Integer.MAX_VALUE or -1 if unknown.
+     * @param mnc The mobile network code, Integer.MAX_VALUE or -1 if unknown.
+     * @param cid The cell id, Integer.MAX_VALUE, Long.MAX_VALUE or -1 if unknown.
+     * @param lac The location area code, Integer.MAX_VALUE or -1 if unknown.
+     */
+    private final void pushUnusedCells(int radio, int mcc, int mnc, long cid, int lac) {
+        // see CellInfo.sanitize()
+        if (mcc == Integer.MAX_VALUE) mcc = -1;
+        if (mnc == Integer.MAX_VALUE) mnc = -1;
+        if (cid == Integer.MAX_VALUE || cid == Long.MAX_VALUE) cid = -1;
+        if (lac == Integer.MAX_VALUE) lac = -1;
+        if (cid == -1 && lac == -1) return;
+        int slot = unusedCells.put(radio, mcc, mnc, lac, cid, 0d, 0d, 0,
+                System.currentTimeMillis(), measurement.get());
+        if (slot >= 0)
+            android.util.Log.d("LNLP/Cell/Unresolved", unusedCells.toString(slot));
     }
 
     /**
      * Update the internal list of resolved cell information.
-     * @param ci The cell information.
+     * @param ci The cell information, copied into the list.
      */
     private final void pushRecentCells(CellInfo ci) {
-        synchronized (recentCells) {
-            boolean isNew = !recentCells.remove(ci);
-            ci.seen = System.currentTimeMillis();
-            ci.measurement = measurement.get();
-            recentCells.add(ci);
-            if (isNew)
-                android.util.Log.d("LNLP/Cell", ci.toString());
-        }
+        int slot = recentCells.put(ci.radio, ci.MCC, ci.MNC, ci.LAC, ci.CID, ci.lng, ci.lat,
+                ci.dbm, System.currentTimeMillis(), measurement.get());
+        if (slot >= 0)
+            android.util.Log.d("LNLP/Cell", recentCells.toString(slot));
     }
 
+    /**
+     * Empty snapshot.
+     */
+    private final static CellInfo[] NO_CELLS = new CellInfo[0];
+    /**
+     * Snapshot of the recent cells as of the last refresh, replaced but never modified.
+     */
+    private volatile CellInfo[] recentSnapshot = NO_CELLS;
+    /**
+     * Snapshot of the unused cells as of the last refresh, replaced but never modified.
+     */
+    private volatile CellInfo[] unusedSnapshot = NO_CELLS;
+
     /**
      * Retrieve the list of recently resolved cells.
-     * @return Array copy of CellInfo instances.
+     * @return Snapshot of CellInfo instances, shared between callers and must not be modified.
      */
     public CellInfo[] getAll() {
-        synchronized (recentCells) {
-            handle(false);
-            cleanup();
-            return recentCells.toArray(new CellInfo[recentCells.size()]);
-        }
+        return recentSnapshot;
     }
 
     /**
      * All cells that are currently unused (can not resolved).
-     * @return Array copy of CellInfo instances.
+     * @return Snapshot of CellInfo instances, shared between callers and must not be modified.
      */
     public CellInfo[] getAllUnused() {
-        synchronized (unusedCells) {
-            handle(false);
-            cleanup();
-            return unusedCells.toArray(new CellInfo[unusedCells.size()]);
+        return unusedSnapshot;
+    }
+
+    /**
+     * Table version of the published recent cells.
+     */
+    private long recentVersion = -1;
+    /**
+     * Table version of the published unused cells.
+     */
+    private long unusedVersion = -1;
+
+    /**
+     * Publish new snapshots of the recent and unused cells and schedule the expiry of the
+     * oldest cell. Called on the refresh thread after every change. Snapshots are only
+     * rebuilt if cells were added, removed or moved, so the seen and measurement fields of
+     * their cells may lag behind.
+     */
+    private void publish() {
+        if (recentVersion != recentCells.version()) {
+            recentVersion = recentCells.version();
+            recentSnapshot = recentCells.size() == 0 ? NO_CELLS : recentCells.toArray();
+        }
+        if (unusedVersion != unusedCells.version()) {
+            unusedVersion = unusedCells.version();
+            unusedSnapshot = unusedCells.size() == 0 ? NO_CELLS : unusedCells.toArray();
         }
+
+        // readers no longer run cleanup, so age based expiry needs a timer
+        if (refreshHandler == null) return;
+        final long oldest = Math.min(recentCells.oldestSeen(), unusedCells.oldestSeen());
+        refreshHandler.removeCallbacks(expire);
+        if (oldest == Long.MAX_VALUE) return;
+        refreshHandler.postDelayed(expire,
+                Math.max(0, oldest + MAX_TIME_AGE - System.currentTimeMillis()));
     }
 
+    /**
+     * Drop timed out cells, scheduled by {@link #publish()}.
+     */
+    private final Runnable expire = new Runnable() {
+        public void run() {
+            cleanup();
+            publish();
+        }
+    };
+
     public static class CountryResult {
         public int currentCountry = 0;
         public int[] countries = null;
     }
 
-    public CountryResult getCountries() {
+    /**
+     * MCC of the registered network, -1 if unknown.
+     */
+    private volatile int networkCountry = -1;
+
+    /**
+     * Extract the MCC of a network operator.
+     * @param operator The numeric operator name (MCC + MNC), may be null.
+     * @return The MCC, -1 if unknown.
+     */
+    private static int parseCountry(String operator) {
+        if (operator == null || operator.length() < 3) return -1;
+        try {
+            return Integer.parseInt(operator.substring(0, 3));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Collect the countries of the tracked cells, refresh thread only (see {@link CellTable}).
+     * @return The country of the current cell and all visible countries.
+     */
+    private CountryResult getCountries() {
         int currentCountry = 0;
-        HashSet<Integer> countries = new HashSet<Integer>(8);
-        for(CellInfo cellInfo : recentCells) {
-            if (cellInfo.MCC > 0) {
-                countries.add(cellInfo.MCC);
-                if (location != null &&
-                    cellInfo.CID == location.getCid() &&
-                    cellInfo.LAC == location.getLac()) {
-                    currentCountry = cellInfo.MCC;
-                }
+        final GsmCellLocation location = this.location;
+        if (location != null) {
+            currentCountry = unusedCells.country(location.getCid(), location.getLac());
+            if (currentCountry == 0) {
+                currentCountry = recentCells.country(location.getCid(), location.getLac());
             }
         }
-        for(CellInfo cellInfo : unusedCells) {
-            if (cellInfo.MCC > 0) {
-                countries.add(cellInfo.MCC);
-                if (location != null &&
-                        cellInfo.CID == location.getCid() &&
-                        cellInfo.LAC == location.getLac()) {
-                    currentCountry = cellInfo.MCC;
-                }
-            }
+        final int networkCountry = this.networkCountry;
+        if (currentCountry == 0 && networkCountry > 0) {
+            currentCountry = networkCountry;
+        }
+        int[] countries = new int[recentCells.size() + unusedCells.size() + 1];
+        int n = recentCells.countries(countries, 0);
+        n = unusedCells.countries(countries, n);
+        if (networkCountry > 0) {
+            int j = 0;
+            while (j < n && countries[j] != networkCountry) j++;
+            if (j == n) countries[n++] = networkCountry;
         }
         CountryResult result = new CountryResult();
         result.currentCountry = currentCountry;
-        result.countries = new int[countries.size()];
-        Integer[] ints = countries.toArray(new Integer[countries.size()]);
-        for (int i = 0; i < result.countries.length; i++) {
-            result.countries[i] = ints[i];
-        }
+        result.countries = n == countries.length ? countries : Arrays.copyOf(countries, n);
         return result;
     }
 
     /**
-     * Clean stalled entries within the recent/unused cell list.
+     * Clean stalled entries within the recent/unused cell list. Only visits the expired cells,
+     * see {@link CellTable}. Refresh thread only.
      */
-    public void cleanup() {
-        ArrayList<CellInfo> dead = null;
+    private void cleanup() {
         long mThreshold = measurement.get() - MAX_MEASUREMENT_AGE;
         long timeThreshold = System.currentTimeMillis() - MAX_TIME_AGE;
-        for (CellInfo ci : recentCells) {
-            boolean outdatedByAge = ci.seen <= timeThreshold;
-            boolean outdatedByMeasurement = ci.measurement <= mThreshold;
-            if (!outdatedByAge && !outdatedByMeasurement) continue;
-            if (dead == null) {
-                dead = new ArrayList<CellInfo>(recentCells.size() + 1);
-            }
-            String reason = "Cell outdated ";
-            if (outdatedByMeasurement && !outdatedByAge) {
-                reason = "Measurements reached ";
-            }
-            if (outdatedByAge && !outdatedByMeasurement) {
-                reason = "Timeout reached ";
-            }
-            android.util.Log.d("LNLP/Cell/Died", reason + ci.toString());
-            dead.add(ci);
-        }
-        if (dead != null) {
-            recentCells.removeAll(dead);
-        }
-        if (dead != null) dead.clear();
-        for (CellInfo ci : unusedCells) {
-            boolean outdatedByAge = ci.seen <= timeThreshold;
-            boolean outdatedByMeasurement = ci.measurement <= mThreshold;
-            if (!outdatedByAge && !outdatedByMeasurement) continue;
-            if (dead == null) {
-                dead = new ArrayList<CellInfo>(unusedCells.size() + 1);
-            }
-            String reason = "Cell outdated ";
-            if (outdatedByMeasurement && !outdatedByAge) {
-                reason = "Measurements reached ";
-            }
-            if (outdatedByAge && !outdatedByMeasurement) {
-                reason = "Timeout reached ";
-            }
-            android.util.Log.d("LNLP/Cell/Unused/Died", reason + ci.toString());
-            dead.add(ci);
-        }
-        if (dead != null) {
-            unusedCells.removeAll(dead);
-        }
+        recentCells.expire(mThreshold, timeThreshold, "LNLP/Cell/Died");
+        unusedCells.expire(mThreshold, timeThreshold, "LNLP/Cell/Unused/Died");
     }
 
     /**
@@ -260,25 +293,7 @@ public class CellbasedLocationProvider {
             return;
         }
         GsmCellLocation cell = (GsmCellLocation) icell;
-        List<CellInfo> cellInfos = db.query(cell.getCid(), cell.getLac());
-        if (cellInfos != null && !cellInfos.isEmpty()) {
-            long measurement = this.measurement.get();
-            for (CellInfo cellInfo : cellInfos) {
-                cellInfo.measurement = measurement;
-                cellInfo.seen = System.currentTimeMillis();
-                pushRecentCells(cellInfo);
-            }
-        } else {
-            CellInfo ci = new CellInfo();
-            ci.measurement = this.measurement.get();
-            ci.lng = 0d;
-            ci.lat = 0d;
-            ci.CID = ((GsmCellLocation) icell).getCid();
-            ci.LAC = ((GsmCellLocation) icell).getLac();
-            ci.MCC = -1;
-            ci.MNC = -1;
-            pushUnusedCells(ci);
-        }
+        observe(TowerReader.RADIO_GSM, -1, -1, cell.getCid(), cell.getLac());
     }
 
     /**
@@ -288,21 +303,7 @@ public class CellbasedLocationProvider {
     public void addNeighbours(List<NeighboringCellInfo> neighbours) {
         if (neighbours == null || neighbours.isEmpty()) return;
         for (NeighboringCellInfo neighbour : neighbours) {
-            List<CellInfo> cellInfos = db.query(neighbour.getCid(), neighbour.getLac());
-            if (cellInfos != null && !cellInfos.isEmpty()) {
-                for (CellInfo cellInfo : cellInfos) {
-                    pushRecentCells(cellInfo);
-                }
-            } else {
-                CellInfo ci = new CellInfo();
-                ci.lng = 0d;
-                ci.lat = 0d;
-                ci.CID = neighbour.getCid();
-                ci.LAC = neighbour.getLac();
-                ci.MCC = -1;
-                ci.MNC = -1;
-                pushUnusedCells(ci);
-            }
+            observe(TowerReader.RADIO_GSM, -1, -1, neighbour.getCid(), neighbour.getLac());
         }
     }
 
@@ -313,55 +314,158 @@ public class CellbasedLocationProvider {
     public void addCells(List<android.telephony.CellInfo> inputCellInfos) {
         if (inputCellInfos == null || inputCellInfos.isEmpty()) return;
         for (android.telephony.CellInfo inputCellInfo : inputCellInfos) {
-            List<CellInfo> cellInfos = null;
             if (inputCellInfo instanceof CellInfoGsm) {
-                CellInfoGsm gsm = (CellInfoGsm) inputCellInfo;
-                CellIdentityGsm id = gsm.getCellIdentity();
-                cellInfos = db.query(id.getMcc(), id.getMnc(), id.getCid(), id.getLac());
-                if (cellInfos == null) {
-                    CellInfo ci = new CellInfo();
-                    ci.lng = 0d;
-                    ci.lat = 0d;
-                    ci.CID = id.getCid();
-                    ci.LAC = id.getLac();
-                    ci.MNC = id.getMnc();
-                    ci.MCC = id.getMcc();
-                    pushUnusedCells(ci);
-                }
-            }
-            if (inputCellInfo instanceof CellInfoWcdma) {
-                CellInfoWcdma wcdma = (CellInfoWcdma) inputCellInfo;
-                CellIdentityWcdma id = wcdma.getCellIdentity();
-                cellInfos = db.query(id.getMcc(), id.getMnc(), id.getCid(), id.getLac());
-                if (cellInfos == null) {
-                    CellInfo ci = new CellInfo();
-                    ci.lng = 0d;
-                    ci.lat = 0d;
-                    ci.CID = id.getCid();
-                    ci.LAC = id.getLac();
-                    ci.MNC = id.getMnc();
-                    ci.MCC = id.getMcc();
-                    pushUnusedCells(ci);
-                }
+                CellIdentityGsm id = ((CellInfoGsm) inputCellInfo).getCellIdentity();
+                addCell(inputCellInfo, TowerReader.RADIO_GSM,
+                        id.getMcc(), id.getMnc(), id.getCid(), id.getLac());
+            } else if (inputCellInfo instanceof CellInfoWcdma) {
+                CellIdentityWcdma id = ((CellInfoWcdma) inputCellInfo).getCellIdentity();
+                addCell(inputCellInfo, TowerReader.RADIO_GSM,
+                        id.getMcc(), id.getMnc(), id.getCid(), id.getLac());
+            } else if (inputCellInfo instanceof CellInfoLte) {
+                CellIdentityLte id = ((CellInfoLte) inputCellInfo).getCellIdentity();
+                addCell(inputCellInfo, TowerReader.RADIO_LTE,
+                        id.getMcc(), id.getMnc(), id.getCi(), id.getTac());
+            } else if (NrCells.isNr(inputCellInfo)) {
+                NrCells.add(this, inputCellInfo);
             }
-            if (cellInfos == null) continue;
+        }
+    }
 
-            if (!cellInfos.isEmpty()) {
+    /**
+     * Queue a cell for resolution by the lookup pipeline, refresh thread only.
+     * @param radio The radio type, see TowerReader.RADIO_*.
+     * @param mcc The MCC, Integer.MAX_VALUE or -1 if unknown.
+     * @param mnc The MNC, Integer.MAX_VALUE or -1 if unknown.
+     * @param cid The cell id, sign extended for GSM.
+     * @param lac The location or tracking area code.
+     */
+    private void observe(int radio, int mcc, int mnc, long cid, int lac) {
+        if (pipeline == null) return;
+        pipeline.offer(radio, mcc, mnc, cid, lac);
+    }
+
+    /**
+     * Apply a resolved batch of the lookup pipeline, runs on the refresh thread.
+     */
+    private final LookupPipeline.Sink sink = new LookupPipeline.Sink() {
+        public void apply(LookupPipeline.Batch batch) {
+            for (int i = 0; i < batch.size; i++) {
+                final List<CellInfo> cellInfos = batch.cells(i);
+                if (cellInfos == null || cellInfos.isEmpty()) {
+                    pushUnusedCells(batch.radio[i], batch.mcc[i], batch.mnc[i],
+                            batch.cid[i], batch.lac[i]);
+                    continue;
+                }
                 for (CellInfo cellInfo : cellInfos) {
                     pushRecentCells(cellInfo);
                 }
             }
+            cleanup();
+            db.prepare(getCountries().countries);
+            publish();
+        }
+    };
+
+    /**
+     * Retrieve the lookup pipeline metrics.
+     * @return The metrics, null before init.
+     */
+    public LookupPipeline.Stats getPipelineStats() {
+        return pipeline == null ? null : pipeline.getStats();
+    }
+
+    /**
+     * Resolve a single cell of a cell info update.
+     * @param info The cell info, the area of a registered cell is preloaded.
+     * @param radio The radio type, see TowerReader.RADIO_*.
+     * @param mcc The MCC, Integer.MAX_VALUE if unknown.
+     * @param mnc The MNC, Integer.MAX_VALUE if unknown.
+     * @param cid The cell id, not sign extended for 32 bit ids. Unknown if Integer.MAX_VALUE
+     *            or Long.MAX_VALUE.
+     * @param lac The location or tracking area code.
+     */
+    private void addCell(
+        android.telephony.CellInfo info, int radio, int mcc, int mnc, long cid, int lac
+    ) {
+        if (info.isRegistered()) {
+            // the neighbours and the next handover are most likely in the same area
+            db.preload(radio, lac);
+        }
+        observe(radio, mcc, mnc, cid, lac);
+    }
+
+    /**
+     * NR cells (API 29) through reflection, the app is built against API 17.
+     */
+    private static final class NrCells {
+
+        private static final Class<?> INFO;
+        private static final Method IDENTITY;
+        private static final Method NCI;
+        private static final Method TAC;
+        private static final Method MCC;
+        private static final Method MNC;
+
+        static {
+            Class<?> info = null;
+            Method identity = null, nci = null, tac = null, mcc = null, mnc = null;
+            try {
+                info = Class.forName("android.telephony.CellInfoNr");
+                identity = info.getMethod("getCellIdentity");
+                Class<?> id = Class.forName("android.telephony.CellIdentityNr");
+                nci = id.getMethod("getNci");
+                tac = id.getMethod("getTac");
+                mcc = id.getMethod("getMccString");
+                mnc = id.getMethod("getMncString");
+            } catch (Exception e) {
+                // pre NR device
+                info = null;
+            }
+            INFO = info;
+            IDENTITY = identity;
+            NCI = nci;
+            TAC = tac;
+            MCC = mcc;
+            MNC = mnc;
+        }
+
+        private static boolean isNr(android.telephony.CellInfo info) {
+            return INFO != null && INFO.isInstance(info);
+        }
+
+        private static void add(CellbasedLocationProvider provider, android.telephony.CellInfo info) {
+            try {
+                Object id = IDENTITY.invoke(info);
+                provider.addCell(info, TowerReader.RADIO_NR,
+                        parse((String) MCC.invoke(id)), parse((String) MNC.invoke(id)),
+                        (Long) NCI.invoke(id), (Integer) TAC.invoke(id));
+            } catch (Exception e) {
+                android.util.Log.e("LNLP", "reading NR cell failed", e);
+            }
+        }
+
+        private static int parse(String code) {
+            if (code == null) return Integer.MAX_VALUE;
+            try {
+                return Integer.parseInt(code);
+            } catch (NumberFormatException e) {
+                return Integer.MAX_VALUE;
+            }
         }
+
     }
 
     /**
-     * Handle a modem event by trying to pull all information. The parameter inc defines if the
-     * measurement counter should be increased on success.
-     * @param inc True if the measurement counter should be increased.
+     * Handle a modem event by trying to pull all information. The parameter ticks defines by how
+     * much the measurement counter should be increased on success.
+     * @param ticks The measurement clock increment if the modem reports any cell.
+     * @param delivered The cell info list delivered by a callback, null to query the modem.
      */
-    private void handle(boolean inc) {
+    private void handle(int ticks, List<android.telephony.CellInfo> delivered) {
         if (telephonyManager == null) return;
-        final List<android.telephony.CellInfo> cellInfos = telephonyManager.getAllCellInfo();
+        final List<android.telephony.CellInfo> cellInfos =
+            delivered != null ? delivered : telephonyManager.getAllCellInfo();
         final List<NeighboringCellInfo> neighbours = telephonyManager.getNeighboringCellInfo();
         final CellLocation cellLocation = telephonyManager.getCellLocation();
         if (cellInfos == null || cellInfos.isEmpty()) {
@@ -369,13 +473,10 @@ public class CellbasedLocationProvider {
                 if (cellLocation == null || !(cellLocation instanceof GsmCellLocation)) return;
             }
         }
-        if (inc) measurement.getAndIncrement();
+        if (ticks > 0) measurement.addAndGet(ticks);
         add(cellLocation);
         addNeighbours(neighbours);
         addCells(cellInfos);
-        synchronized (recentCells) {
-            cleanup();
-        }
     }
 
     /**
@@ -383,6 +484,158 @@ public class CellbasedLocationProvider {
      */
     private TelephonyManager telephonyManager;
 
+    // Telephony callbacks only record that they fired. A single refresh on the refresh thread
+    // queries the modem once the events calmed down for the debounce window, or once the first
+    // pending event is max latency old during a continuous storm.
+
+    /**
+     * Refresh contributor: signal strength change of a known cell/rssi combination.
+     */
+    private final static int EVENT_SIGNAL = 1;
+    /**
+     * Refresh contributor: signal strength change to a new cell/rssi combination.
+     */
+    private final static int EVENT_SIGNAL_NEW = 1 << 1;
+    /**
+     * Refresh contributor: service state change.
+     */
+    private final static int EVENT_SERVICE = 1 << 2;
+    /**
+     * Refresh contributor: the serving cell changed.
+     */
+    private final static int EVENT_CELL_LOCATION = 1 << 3;
+    /**
+     * Refresh contributor: data connection state change.
+     */
+    private final static int EVENT_DATA_CONNECTION = 1 << 4;
+    /**
+     * Refresh contributor: new cell info list.
+     */
+    private final static int EVENT_CELL_INFO = 1 << 5;
+    /**
+     * Refresh contributor: provider start, fills the first snapshot.
+     */
+    private final static int EVENT_INIT = 1 << 6;
+    /**
+     * Contributors that always advance the measurement clock.
+     */
+    private final static int EVENTS_MEASUREMENT = EVENT_CELL_LOCATION | EVENT_CELL_INFO;
+    /**
+     * Contributors that advance the measurement clock if the modem reports any cell.
+     */
+    private final static int EVENTS_MEASUREMENT_IF_CELLS = EVENT_SIGNAL_NEW | EVENT_SERVICE;
+
+    /**
+     * Quiet time in ms before pending events are refreshed.
+     */
+    private long refreshDebounce = 250;
+    /**
+     * Maximum time in ms between the first pending event and its refresh.
+     */
+    private long refreshMaxLatency = 2000;
+
+    /**
+     * Handler of the refresh thread, null before init.
+     */
+    private Handler refreshHandler = null;
+    /**
+     * Resolves the cells seen by the refresh thread, null before init.
+     */
+    private LookupPipeline pipeline = null;
+    /**
+     * Guards the pending refresh state below.
+     */
+    private final Object refreshLock = new Object();
+    /**
+     * Bitmask of the EVENT_* contributors since the last refresh.
+     */
+    private int pendingEvents = 0;
+    /**
+     * Number of events since the last refresh.
+     */
+    private int pendingCount = 0;
+    /**
+     * Number of EVENTS_MEASUREMENT events since the last refresh.
+     */
+    private int pendingTicks = 0;
+    /**
+     * Number of EVENTS_MEASUREMENT_IF_CELLS events since the last refresh.
+     */
+    private int pendingCellTicks = 0;
+    /**
+     * Uptime of the first event since the last refresh.
+     */
+    private long pendingSince = 0;
+    /**
+     * The latest cell info list delivered by a callback, null if none.
+     */
+    private List<android.telephony.CellInfo> pendingCellInfo = null;
+
+    /**
+     * Query the modem once for all pending events.
+     */
+    private final Runnable refresh = new Runnable() {
+        public void run() {
+            final int events;
+            final int count;
+            final int ticks;
+            final int cellTicks;
+            final List<android.telephony.CellInfo> cellInfo;
+            synchronized (refreshLock) {
+                events = pendingEvents;
+                count = pendingCount;
+                ticks = pendingTicks;
+                cellTicks = pendingCellTicks;
+                cellInfo = pendingCellInfo;
+                pendingEvents = 0;
+                pendingCount = 0;
+                pendingTicks = 0;
+                pendingCellTicks = 0;
+                pendingCellInfo = null;
+            }
+            if (events == 0) return;
+            android.util.Log.d("LNLP/Refresh",
+                    count + " events, contributors 0x" + Integer.toHexString(events));
+            // advance the clock once per coalesced event, as if each had been handled on its own,
+            // so MAX_MEASUREMENT_AGE keeps counting measurements and not refreshes
+            if (ticks > 0) measurement.addAndGet(ticks);
+            // a list delivered in this window is current, do not ask the modem again
+            handle(cellTicks, cellInfo);
+            // the lookup stage resolves the cells, the sink applies them and publishes
+            pipeline.flush();
+        }
+    };
+
+    /**
+     * Record a telephony event and (re)schedule the refresh.
+     * @param event The EVENT_* contributor.
+     * @param cellInfo The cell info list delivered with the event, null if none.
+     */
+    private void schedule(int event, List<android.telephony.CellInfo> cellInfo) {
+        if (refreshHandler == null) {
+            return;
+        }
+        synchronized (refreshLock) {
+            final long now = SystemClock.uptimeMillis();
+            if (pendingEvents == 0) {
+                pendingSince = now;
+            }
+            pendingEvents |= event;
+            pendingCount++;
+            if ((event & EVENTS_MEASUREMENT) != 0) {
+                pendingTicks++;
+            } else if ((event & EVENTS_MEASUREMENT_IF_CELLS) != 0) {
+                pendingCellTicks++;
+            }
+            if (cellInfo != null) {
+                pendingCellInfo = cellInfo;
+            }
+            refreshHandler.removeCallbacks(refresh);
+            refreshHandler.postAtTime(refresh,
+                    Math.min(now + refreshDebounce, pendingSince + refreshMaxLatency));
+        }
+    }
+
     /**
      * SignalStringthInfo represents a single CID/LAC with a rssi. Used for lookups / caching.
      */
@@ -428,6 +681,21 @@ public class CellbasedLocationProvider {
 
         telephonyManager = (TelephonyManager) ctx.getSystemService(Context.TELEPHONY_SERVICE);
 
+        refreshDebounce = ctx.getResources().getInteger(R.integer.refresh_debounce);
+        refreshMaxLatency = Math.max(refreshDebounce,
+                ctx.getResources().getInteger(R.integer.refresh_max_latency));
+        final HandlerThread refreshThread = new HandlerThread("LNLP/Refresh");
+        refreshThread.start();
+        refreshHandler = new Handler(refreshThread.getLooper());
+        final HandlerThread lookupThread = new HandlerThread("LNLP/Lookup");
+        lookupThread.start();
+        pipeline = new LookupPipeline(db, new Handler(lookupThread.getLooper()), refreshHandler,
+                sink, ctx.getResources().getInteger(R.integer.lookup_capacity),
+                ctx.getResources().getInteger(R.integer.lookup_overflow));
+
+        // small, answers the first queries while the database opens
+        db.loadHotSet(ctx);
+
         final Context fctx = ctx;
         new Thread() {
             public void run() {
@@ -461,29 +729,31 @@ public class CellbasedLocationProvider {
                     }
                     if (inc) {
                         android.util.Log.d("LNLP/Signal/Measurement", ssi.toString());
-                        handle(true);
+                        schedule(EVENT_SIGNAL_NEW, null);
                         return;
                     }
                 }
-                handle(false);
+                schedule(EVENT_SIGNAL, null);
             }
             public void onServiceStateChanged(ServiceState serviceState) {
-                handle(true);
+                // cell locations and neighbours carry no MCC, their shard is that of the network
+                networkCountry = parseCountry(serviceState.getOperatorNumeric());
+                db.setNetworkCountry(networkCountry);
+                schedule(EVENT_SERVICE, null);
             }
             public void onCellLocationChanged(CellLocation location) {
                 if (!(location instanceof GsmCellLocation)) return;
                 CellbasedLocationProvider.this.location = (GsmCellLocation) location;
-                measurement.getAndIncrement();
-                add(location);
-                handle(false);
+                // the neighbours and the next handover are most likely in the same area
+                db.preload(((GsmCellLocation) location).getLac());
+                // the refresh reads the new cell location from the modem
+                schedule(EVENT_CELL_LOCATION, null);
             }
             public void onDataConnectionStateChanged(int state) {
-                handle(false);
+                schedule(EVENT_DATA_CONNECTION, null);
             }
             public void onCellInfoChanged(List<android.telephony.CellInfo> cellInfo) {
-                measurement.getAndIncrement();
-                addCells(cellInfo);
-                handle(false);
+                schedule(EVENT_CELL_INFO, cellInfo);
             }
         };
         telephonyManager.listen(
@@ -494,6 +764,7 @@ public class CellbasedLocationProvider {
             PhoneStateListener.LISTEN_DATA_CONNECTION_STATE |
             PhoneStateListener.LISTEN_SERVICE_STATE
         );
+        schedule(EVENT_INIT, null);
     }
 
 }
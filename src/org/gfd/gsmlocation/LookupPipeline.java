@@ -0,0 +1,374 @@
+package org.gfd.gsmlocation;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gfd.gsmlocation.db.CellCache;
+import org.gfd.gsmlocation.db.CellTowerDatabase;
+import org.gfd.gsmlocation.db.TowerReader;
+import org.gfd.gsmlocation.model.CellInfo;
+
+import android.os.Handler;
+
+/**
+ * Three stage pipeline that resolves raw cell observations without blocking the thread that
+ * reads the modem.<br />
+ * The observe stage (a single producer thread) collects the cells of a refresh with
+ * {@link #offer(int, int, int, long, int)} and hands them over with {@link #flush()}. They go
+ * through a bounded single producer / single consumer ring that uses no locks. The lookup
+ * stage drains everything that is queued as one batch, resolves it against the
+ * {@link CellTowerDatabase} on its own thread, and posts the batch to the state stage, which
+ * applies it on the producer thread.<br />
+ * Observations of the same cell within a flush are merged. If the ring is full, the overflow
+ * policy decides between dropping the remaining observations ({@link #OVERFLOW_DROP}) and
+ * keeping them staged ({@link #OVERFLOW_MERGE}). Staged observations are merged with the
+ * sightings of later refreshes and are flushed once the lookup stage caught up, so a slow
+ * database coalesces refreshes instead of queueing every one of them.<br />
+ * The staging area has the capacity of the ring under both policies. Once it is full, new
+ * cells are dropped (and counted as dropped) until a flush frees space, sightings of staged
+ * cells are still merged.
+ */
+public final class LookupPipeline {
+
+    /**
+     * Overflow policy: drop observations that do not fit into the ring.
+     */
+    final static int OVERFLOW_DROP = 0;
+    /**
+     * Overflow policy: keep observations that do not fit staged and merge later sightings.
+     * New cells are still dropped while the staging area (one ring capacity) is full.
+     */
+    final static int OVERFLOW_MERGE = 1;
+
+    /**
+     * The state stage, called on the producer thread.
+     */
+    interface Sink {
+        /**
+         * Apply a resolved batch.
+         * @param batch The batch.
+         */
+        void apply(Batch batch);
+    }
+
+    /**
+     * A resolved batch of observations.
+     */
+    final static class Batch {
+        final int size;
+        final int[] radio;
+        final int[] mcc;
+        final int[] mnc;
+        final int[] lac;
+        final long[] cid;
+        /**
+         * The resolved cells of every observation, null if the cell is unknown.
+         */
+        final Object[] cells;
+        long resolved;
+
+        Batch(int size) {
+            this.size = size;
+            this.radio = new int[size];
+            this.mcc = new int[size];
+            this.mnc = new int[size];
+            this.lac = new int[size];
+            this.cid = new long[size];
+            this.cells = new Object[size];
+        }
+
+        /**
+         * The resolved cells of an observation.
+         * @param i The observation.
+         * @return The cells, null if the cell is unknown.
+         */
+        @SuppressWarnings("unchecked")
+        List<CellInfo> cells(int i) {
+            return (List<CellInfo>) cells[i];
+        }
+    }
+
+    /**
+     * Immutable snapshot of the pipeline metrics, latencies are in ms.
+     */
+    public final static class Stats {
+        /** Observations currently queued between the observe and the lookup stage. */
+        public final int depth;
+        /** Largest observed queue depth. */
+        public final int maxDepth;
+        /** Observations waiting in the observe stage for room in the queue. */
+        public final int staged;
+        /** Observations handed to the lookup stage. */
+        public final long enqueued;
+        /** Observations merged into a pending observation of the same cell. */
+        public final long merged;
+        /** Observations dropped because the queue was full. */
+        public final long dropped;
+        /** Batches that passed all stages. */
+        public final long batches;
+        /** Time from enqueueing to resolution, average and maximum per observation. */
+        public final double lookupAvg;
+        public final double lookupMax;
+        /** Time from resolution to the state update, average and maximum per batch. */
+        public final double applyAvg;
+        public final double applyMax;
+
+        Stats(
+            int depth, int maxDepth, int staged, long enqueued, long merged, long dropped,
+            long batches, double lookupAvg, double lookupMax, double applyAvg, double applyMax
+        ) {
+            this.depth = depth;
+            this.maxDepth = maxDepth;
+            this.staged = staged;
+            this.enqueued = enqueued;
+            this.merged = merged;
+            this.dropped = dropped;
+            this.batches = batches;
+            this.lookupAvg = lookupAvg;
+            this.lookupMax = lookupMax;
+            this.applyAvg = applyAvg;
+            this.applyMax = applyMax;
+        }
+
+        public String toString() {
+            return "PIPELINE(depth=" + depth + ",maxDepth=" + maxDepth + ",staged=" + staged +
+                   ",enqueued=" + enqueued + ",merged=" + merged + ",dropped=" + dropped +
+                   ",batches=" + batches +
+                   ",lookup=[avg=" + lookupAvg + ",max=" + lookupMax + "]" +
+                   ",apply=[avg=" + applyAvg + ",max=" + applyMax + "])";
+        }
+    }
+
+    private final CellTowerDatabase db;
+    private final Handler lookup;
+    private final Handler state;
+    private final Sink sink;
+    private final int policy;
+
+    // ring, slots in [head, tail) are owned by the lookup stage
+    private final int capacity;
+    private final int mask;
+    private final int[] radio;
+    private final int[] mcc;
+    private final int[] mnc;
+    private final int[] lac;
+    private final long[] cid;
+    private final long[] enqueuedAt;
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    // staging, owned by the producer
+    private final long[] stagedHi;
+    private final long[] stagedLo;
+    private final int[] stagedRadio;
+    private final int[] stagedMcc;
+    private final int[] stagedMnc;
+    private final int[] stagedLac;
+    private final long[] stagedCid;
+    private int staged = 0;
+
+    // metrics, every field has a single writer
+    private volatile int maxDepth = 0;
+    private final AtomicLong enqueued = new AtomicLong(0);
+    private final AtomicLong merged = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private volatile long batches = 0;
+    private volatile long lookupTotal = 0;
+    private volatile long lookupMax = 0;
+    private volatile long lookupCount = 0;
+    private volatile long applyTotal = 0;
+    private volatile long applyMax = 0;
+
+    /**
+     * Create a pipeline.
+     * @param db The database of the lookup stage.
+     * @param lookup The handler of the lookup stage thread.
+     * @param state The handler of the producer thread, runs the state stage.
+     * @param sink The state stage.
+     * @param capacity The queue capacity, rounded up to a power of two.
+     * @param policy The overflow policy, OVERFLOW_DROP or OVERFLOW_MERGE.
+     */
+    LookupPipeline(
+        CellTowerDatabase db, Handler lookup, Handler state, Sink sink, int capacity, int policy
+    ) {
+        int slots = 2;
+        while (slots < capacity) {
+            slots <<= 1;
+        }
+        this.db = db;
+        this.lookup = lookup;
+        this.state = state;
+        this.sink = sink;
+        this.policy = policy;
+        this.capacity = slots;
+        this.mask = slots - 1;
+        this.radio = new int[slots];
+        this.mcc = new int[slots];
+        this.mnc = new int[slots];
+        this.lac = new int[slots];
+        this.cid = new long[slots];
+        this.enqueuedAt = new long[slots];
+        this.stagedHi = new long[slots];
+        this.stagedLo = new long[slots];
+        this.stagedRadio = new int[slots];
+        this.stagedMcc = new int[slots];
+        this.stagedMnc = new int[slots];
+        this.stagedLac = new int[slots];
+        this.stagedCid = new long[slots];
+    }
+
+    /**
+     * Stage an observation, producer thread only. A new cell is dropped if the staging area is
+     * full, a sighting of a staged cell is merged.
+     * @param radio The radio type, see TowerReader.RADIO_*.
+     * @param mcc The mobile country code, Integer.MAX_VALUE or -1 if unknown.
+     * @param mnc The mobile network code, Integer.MAX_VALUE or -1 if unknown.
+     * @param cid The cell id as reported, sign extended for GSM.
+     * @param lac The location (or tracking) area code.
+     */
+    void offer(int radio, int mcc, int mnc, long cid, int lac) {
+        final long h = CellCache.hi(radio, mcc, mnc);
+        final long l = CellCache.lo(radio, lac, cid);
+        for (int i = 0; i < staged; i++) {
+            if (stagedHi[i] == h && stagedLo[i] == l) {
+                merged.incrementAndGet();
+                return;
+            }
+        }
+        if (staged == stagedHi.length) {
+            dropped.incrementAndGet();
+            return;
+        }
+        stagedHi[staged] = h;
+        stagedLo[staged] = l;
+        stagedRadio[staged] = radio;
+        stagedMcc[staged] = mcc;
+        stagedMnc[staged] = mnc;
+        stagedLac[staged] = lac;
+        stagedCid[staged] = cid;
+        staged++;
+    }
+
+    /**
+     * Hand the staged observations to the lookup stage, producer thread only.
+     */
+    void flush() {
+        if (staged == 0) return;
+        long t = tail.get();
+        final int free = capacity - (int) (t - head.get());
+        final int n = Math.min(free, staged);
+        final long now = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            final int slot = (int) (t++ & mask);
+            radio[slot] = stagedRadio[i];
+            mcc[slot] = stagedMcc[i];
+            mnc[slot] = stagedMnc[i];
+            lac[slot] = stagedLac[i];
+            cid[slot] = stagedCid[i];
+            enqueuedAt[slot] = now;
+        }
+        // publishes the slots to the lookup stage
+        tail.lazySet(t);
+        enqueued.addAndGet(n);
+        maxDepth = Math.max(maxDepth, capacity - free + n);
+        if (n < staged) {
+            if (policy == OVERFLOW_DROP) {
+                dropped.addAndGet(staged - n);
+                android.util.Log.d("LNLP/Pipeline", "queue full, dropped " + (staged - n));
+                staged = 0;
+            } else {
+                // keep the rest staged, flushed again once a batch was applied
+                final int rest = staged - n;
+                System.arraycopy(stagedHi, n, stagedHi, 0, rest);
+                System.arraycopy(stagedLo, n, stagedLo, 0, rest);
+                System.arraycopy(stagedRadio, n, stagedRadio, 0, rest);
+                System.arraycopy(stagedMcc, n, stagedMcc, 0, rest);
+                System.arraycopy(stagedMnc, n, stagedMnc, 0, rest);
+                System.arraycopy(stagedLac, n, stagedLac, 0, rest);
+                System.arraycopy(stagedCid, n, stagedCid, 0, rest);
+                staged = rest;
+            }
+        } else {
+            staged = 0;
+        }
+        if (n > 0 && draining.compareAndSet(false, true)) {
+            lookup.post(drain);
+        }
+    }
+
+    /**
+     * The lookup stage: resolve everything that is queued as one batch.
+     */
+    private final Runnable drain = new Runnable() {
+        public void run() {
+            // clear first, observations published after the read below post a new drain
+            draining.set(false);
+            final long h = head.get();
+            final long t = tail.get();
+            if (t == h) return;
+            final Batch batch = new Batch((int) (t - h));
+            long enqueuedSum = 0;
+            long oldest = Long.MAX_VALUE;
+            for (int i = 0; i < batch.size; i++) {
+                final int slot = (int) ((h + i) & mask);
+                batch.radio[i] = radio[slot];
+                batch.mcc[i] = mcc[slot];
+                batch.mnc[i] = mnc[slot];
+                batch.lac[i] = lac[slot];
+                batch.cid[i] = cid[slot];
+                enqueuedSum += enqueuedAt[slot];
+                oldest = Math.min(oldest, enqueuedAt[slot]);
+            }
+            // hands the slots back to the producer
+            head.lazySet(t);
+            for (int i = 0; i < batch.size; i++) {
+                final long keyCid = batch.radio[i] == TowerReader.RADIO_GSM
+                                  ? batch.cid[i] & 0xffffffffl : batch.cid[i];
+                batch.cells[i] = db.query(
+                        batch.radio[i], batch.mcc[i], batch.mnc[i], keyCid, batch.lac[i]);
+            }
+            batch.resolved = System.nanoTime();
+            lookupTotal += batch.resolved * batch.size - enqueuedSum;
+            lookupCount += batch.size;
+            lookupMax = Math.max(lookupMax, batch.resolved - oldest);
+            state.post(new Runnable() {
+                public void run() {
+                    apply(batch);
+                }
+            });
+        }
+    };
+
+    /**
+     * The state stage, runs on the producer thread.
+     * @param batch The resolved batch.
+     */
+    private void apply(Batch batch) {
+        sink.apply(batch);
+        final long latency = System.nanoTime() - batch.resolved;
+        applyTotal += latency;
+        applyMax = Math.max(applyMax, latency);
+        batches++;
+        // the lookup stage caught up, retry observations that did not fit
+        flush();
+    }
+
+    /**
+     * Retrieve the pipeline metrics.
+     * @return The metrics.
+     */
+    Stats getStats() {
+        final long lookupCount = this.lookupCount;
+        final long batches = this.batches;
+        final long head = this.head.get();
+        return new Stats(
+            (int) (tail.get() - head), maxDepth, staged,
+            enqueued.get(), merged.get(), dropped.get(), batches,
+            lookupCount == 0 ? 0d : lookupTotal / 1e6 / lookupCount, lookupMax / 1e6,
+            batches == 0 ? 0d : applyTotal / 1e6 / batches, applyMax / 1e6
+        );
+    }
+
+}
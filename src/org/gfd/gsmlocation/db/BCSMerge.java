@@ -0,0 +1,251 @@
+package org.gfd.gsmlocation.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Streaming k-way merge of sorted compact store files. All inputs are read
+ * sequentially through a heap, duplicate keys are resolved by the input
+ * priority (highest wins) and the result is written in a single pass through
+ * {@link BCSWriter}. Memory usage is bounded by one block per input plus the
+ * output block metadata.<br />
+ * Tombstones (all values NaN, see {@link OverlayStack}) delete the key from
+ * lower priority inputs. They are dropped from the output unless the output
+ * is an overlay itself.<br />
+ * If the writer uses other value types than the inputs (e.g. {@link FixedPoint}
+ * instead of Double) the values are converted.
+ */
+public class BCSMerge {
+
+    /**
+     * A single input and its current position.
+     */
+    private static final class Source implements Comparable<Source> {
+        final BCSReader.Cursor cursor;
+        final int priority;
+
+        private Source(BCSReader.Cursor cursor, int priority) {
+            this.cursor = cursor;
+            this.priority = priority;
+        }
+
+        public int compareTo(Source o) {
+            final int cmp = BCSReader.compare(cursor.key, o.cursor.key);
+            if (cmp != 0) {
+                return cmp;
+            }
+            // equal keys: highest priority first
+            return priority > o.priority ? -1 : (priority < o.priority ? 1 : 0);
+        }
+    }
+
+    private final BCSReader[] inputs;
+    private final int[] priorities;
+    private boolean keepTombstones = false;
+
+    /**
+     * Create a merge of the given inputs.
+     * @param inputs The input files, all with the same key/value types.
+     * @param priorities The priority of each input, higher wins on duplicate keys.
+     */
+    public BCSMerge(BCSReader[] inputs, int[] priorities) {
+        if (inputs.length != priorities.length) {
+            throw new IllegalArgumentException("One priority per input required");
+        }
+        for (BCSReader input : inputs) {
+            if (!Arrays.equals(input.keyTypes, inputs[0].keyTypes) ||
+                !Arrays.equals(input.valueTypes, inputs[0].valueTypes)) {
+                throw new IllegalArgumentException("Inputs must share the same schema");
+            }
+        }
+        this.inputs = inputs;
+        this.priorities = priorities;
+    }
+
+    /**
+     * Keep tombstones in the output, needed when the output is an overlay.
+     * @param keepTombstones True to copy the winning tombstones.
+     */
+    public void setKeepTombstones(boolean keepTombstones) {
+        this.keepTombstones = keepTombstones;
+    }
+
+    /**
+     * Run the merge.
+     * @param out The output writer, closed on success.
+     * @return The number of entries written.
+     * @throws IOException
+     */
+    public long merge(BCSWriter out) throws IOException {
+        if (!Arrays.equals(out.keyTypes, inputs[0].keyTypes)) {
+            throw new IllegalArgumentException("Output keys must match the input keys");
+        }
+        final boolean convert = !Arrays.equals(out.valueTypes, inputs[0].valueTypes);
+        PriorityQueue<Source> heap = new PriorityQueue<Source>(Math.max(1, inputs.length));
+        for (int i = 0; i < inputs.length; i++) {
+            Source source = new Source(inputs[i].cursor(), priorities[i]);
+            if (source.cursor.next()) {
+                heap.add(source);
+            }
+        }
+        ArrayList<Source> advance = new ArrayList<Source>(inputs.length);
+        while (!heap.isEmpty()) {
+            final Source winner = heap.poll();
+            if (keepTombstones || !isTombstone(winner.cursor.value)) {
+                if (convert) {
+                    out.append(winner.cursor.key, convert(winner.cursor.value, out.valueTypes));
+                } else {
+                    out.append(winner.cursor.key, winner.cursor.value);
+                }
+            }
+            // skip the same key in all lower priority inputs
+            while (!heap.isEmpty() &&
+                   BCSReader.compare(heap.peek().cursor.key, winner.cursor.key) == 0) {
+                advance.add(heap.poll());
+            }
+            advance.add(winner);
+            for (Source source : advance) {
+                if (source.cursor.next()) {
+                    heap.add(source);
+                }
+            }
+            advance.clear();
+        }
+        out.close();
+        return out.getEntryCount();
+    }
+
+    /**
+     * Re-encode a value for other value types.
+     * @param value The encoded value fragments.
+     * @param types The target types.
+     * @return The value, encoded for the target types.
+     */
+    private byte[][] convert(byte[][] value, Class<?>[] types) {
+        byte[][] converted = new byte[value.length][];
+        for (int i = 0; i < value.length; i++) {
+            converted[i] = BCSReader.type2bytes(
+                types[i], inputs[0].bytes2type(inputs[0].valueTypes[i], value[i]));
+        }
+        return converted;
+    }
+
+    /**
+     * Check if an encoded value is a tombstone, see {@link OverlayStack#isTombstone(Object[])}.
+     * @param value The encoded value fragments.
+     * @return True if all floating point values are NaN.
+     */
+    private boolean isTombstone(byte[][] value) {
+        final Class<?>[] types = inputs[0].valueTypes;
+        Object[] decoded = new Object[value.length];
+        for (int i = 0; i < value.length; i++) {
+            decoded[i] = inputs[0].bytes2type(types[i], value[i]);
+        }
+        return OverlayStack.isTombstone(decoded);
+    }
+
+    /**
+     * Merge tower databases (see {@link TowerReader}). Later inputs win.<br />
+     * Usage: BCSMerge [-overlay] [-in format] [-out format] output.bcs input.bcs [input.bcs ...]
+     * <br />
+     * The formats default to 1 (double positions), 2 is fixed point, 3 adds the
+     * operator dictionary and 4 the radio type with wide LTE/NR cell ids.<br />
+     * Operator codes are local to a file, format 3 and 4 inputs are re-encoded
+     * with the union of all input dictionaries before the merge. Format 1 and 2
+     * inputs are merged to a temporary fixed point file for a format 3 or 4
+     * output and converted afterwards. GSM only formats can not hold the LTE
+     * and NR cells of format 4 inputs.
+     * @param args The command line arguments.
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        int argi = 0;
+        boolean overlay = false;
+        int inFormat = TowerReader.FORMAT_DOUBLE;
+        int outFormat = TowerReader.FORMAT_DOUBLE;
+        while (argi < args.length && args[argi].startsWith("-")) {
+            if (args[argi].equals("-overlay")) {
+                overlay = true;
+            } else if (args[argi].equals("-in") && argi + 1 < args.length) {
+                inFormat = Integer.parseInt(args[++argi]);
+            } else if (args[argi].equals("-out") && argi + 1 < args.length) {
+                outFormat = Integer.parseInt(args[++argi]);
+            } else {
+                break;
+            }
+            argi++;
+        }
+        if (args.length - argi < 2) {
+            System.err.println("Usage: BCSMerge [-overlay] [-in format] [-out format] " +
+                               "output.bcs input.bcs [input.bcs ...]");
+            System.exit(1);
+        }
+        final String output = args[argi++];
+        long start = System.currentTimeMillis();
+
+        // the format of the merged file, converted to the output format afterwards
+        final int mergeFormat;
+        if (TowerReader.hasOperators(inFormat)) {
+            mergeFormat = inFormat;
+        } else if (TowerReader.hasOperators(outFormat)) {
+            mergeFormat = TowerReader.FORMAT_FIXED;
+        } else {
+            mergeFormat = outFormat;
+        }
+        final String target = mergeFormat == outFormat ? output : output + ".merge";
+
+        TowerReader[] inputs = new TowerReader[args.length - argi];
+        ArrayList<File> reencoded = new ArrayList<File>();
+        int[] priorities = new int[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            inputs[i] = new TowerReader(inFormat, args[argi + i]);
+            priorities[i] = i;
+        }
+        OperatorDictionary operators = null;
+        if (TowerReader.hasOperators(inFormat)) {
+            OperatorDictionary[] dictionaries = new OperatorDictionary[inputs.length];
+            for (int i = 0; i < inputs.length; i++) {
+                dictionaries[i] = inputs[i].getOperators();
+            }
+            operators = OperatorDictionary.union(dictionaries);
+            for (int i = 0; i < inputs.length; i++) {
+                if (dictionaries[i].sameCodes(operators)) continue;
+                File file = new File(output + ".in" + i);
+                TowerWriter.convert(inputs[i], inFormat, file.getPath(), operators);
+                inputs[i].close();
+                inputs[i] = new TowerReader(inFormat, file.getPath());
+                reencoded.add(file);
+            }
+        }
+
+        long count;
+        try {
+            BCSMerge merge = new BCSMerge(inputs, priorities);
+            merge.setKeepTombstones(overlay);
+            count = merge.merge(new TowerWriter(mergeFormat, target,
+                TowerReader.hasOperators(mergeFormat) ? operators : null));
+        } finally {
+            for (BCSReader input : inputs) {
+                input.close();
+            }
+            for (File file : reencoded) {
+                file.delete();
+            }
+        }
+        if (mergeFormat != outFormat) {
+            TowerReader merged = new TowerReader(mergeFormat, target);
+            try {
+                count = TowerWriter.convert(merged, outFormat, output);
+            } finally {
+                merged.close();
+                new File(target).delete();
+            }
+        }
+        System.out.println(
+            "Wrote " + count + " entries in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+}
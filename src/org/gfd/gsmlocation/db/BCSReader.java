@@ -1,8 +1,18 @@
 package org.gfd.gsmlocation.db;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Reader for compact store files. Compact Store is a key sorted key-value
@@ -14,8 +24,10 @@ import java.util.ArrayList;
  *   <li>4 bytes: Block count - number of 4KB data blocks
  *   <li>blockcount x (keysize * 2 + valuesize * 2 + 4):
  *           min/max keys and values per block + number of entries
+ *   <li>optional, depending on the schema: 4 bytes length + header extension
  *   <li>4kb blocks, aligend to 4kb boundaries, unchaged blocks are dropped
  * </ol>
+ * Supported types are the boxed java primitives and {@link FixedPoint}.
  */
 public class BCSReader {
     /**
@@ -91,23 +103,183 @@ public class BCSReader {
         public Object[] value;
     }
 
+    /**
+     * Immutable snapshot of the reader statistics.
+     */
+    public final static class Stats {
+        /** Number of get/getAll calls. */
+        public final long searches;
+        /** Block bound keys read during the block range search. */
+        public final long fenceProbes;
+        /** Data blocks read. */
+        public final long blocksRead;
+        /** Bytes read from the file (data blocks and metadata). */
+        public final long bytesRead;
+        /** Entries decoded while scanning blocks. */
+        public final long entriesDecoded;
+        public final long exactHits;
+        public final long exactMisses;
+        public final long prefixHits;
+        public final long prefixMisses;
+        private final long[] latency;
+
+        public Stats(
+            long searches,
+            long fenceProbes,
+            long blocksRead,
+            long bytesRead,
+            long entriesDecoded,
+            long exactHits,
+            long exactMisses,
+            long prefixHits,
+            long prefixMisses,
+            long[] latency
+        ) {
+            this.searches = searches;
+            this.fenceProbes = fenceProbes;
+            this.blocksRead = blocksRead;
+            this.bytesRead = bytesRead;
+            this.entriesDecoded = entriesDecoded;
+            this.exactHits = exactHits;
+            this.exactMisses = exactMisses;
+            this.prefixHits = prefixHits;
+            this.prefixMisses = prefixMisses;
+            this.latency = latency.clone();
+        }
+
+        /**
+         * Number of latency histogram buckets.
+         * @return The bucket count.
+         */
+        public int latencyBuckets() {
+            return latency.length;
+        }
+
+        /**
+         * Lookup latency histogram, the number of lookups that took
+         * [2^bucket, 2^(bucket+1)) microseconds (bucket 0 includes everything below 2us).
+         * @param bucket The bucket, 0 to {@link #latencyBuckets()} - 1.
+         * @return The number of lookups.
+         */
+        public long latency(int bucket) {
+            return latency[bucket];
+        }
+
+        /**
+         * Average number of fence probes per search.
+         * @return The probes per search, 0 if there were no searches.
+         */
+        public double fenceProbesPerSearch() {
+            return searches == 0 ? 0d : (double) fenceProbes / searches;
+        }
+
+        /**
+         * Average number of decoded entries per read block.
+         * @return The entries per block, 0 if no block was read.
+         */
+        public double entriesPerBlock() {
+            return blocksRead == 0 ? 0d : (double) entriesDecoded / blocksRead;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("STATS(searches=").append(searches);
+            sb.append(",fenceProbes=").append(fenceProbes);
+            sb.append(",blocksRead=").append(blocksRead);
+            sb.append(",bytesRead=").append(bytesRead);
+            sb.append(",entriesDecoded=").append(entriesDecoded);
+            sb.append(",exact=").append(exactHits).append("/").append(exactMisses);
+            sb.append(",prefix=").append(prefixHits).append("/").append(prefixMisses);
+            sb.append(",latency=[");
+            for (int i = 0; i < latency.length; i++) {
+                if (i > 0) sb.append(",");
+                sb.append(latency[i]);
+            }
+            sb.append("])");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Random access to the raw bytes of a compact store file.
+     */
+    public interface Source {
+        /**
+         * Read a byte range, thread safe.
+         * @param pos The file offset.
+         * @param buf The target buffer.
+         * @param off The offset within the buffer.
+         * @param len The number of bytes to read.
+         * @throws IOException
+         */
+        void read(long pos, byte[] buf, int off, int len) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    /**
+     * A source backed by a regular file.
+     */
+    public static class FileSource implements Source {
+        private final RandomAccessFile file;
+
+        public FileSource(String file) throws IOException {
+            this.file = new RandomAccessFile(file, "r");
+        }
+
+        public void read(long pos, byte[] buf, int off, int len) throws IOException {
+            synchronized (file) {
+                file.seek(pos);
+                file.readFully(buf, off, len);
+            }
+        }
+
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
     protected Class<?>[] keyTypes;
     protected Class<?>[] valueTypes;
-    protected RandomAccessFile file;
+    protected Source source;
     protected int keySize;
     protected int valueSize;
     protected int blockCount;
     protected int[] keySizes;
     protected int[] valueSizes;
+    /**
+     * Size of the header extension (including the length), 0 if there is none.
+     */
+    protected int extensionSize = 0;
+
+    // statistics, see Stats
+    protected final AtomicLong searches = new AtomicLong();
+    protected final AtomicLong fenceProbes = new AtomicLong();
+    protected final AtomicLong blocksRead = new AtomicLong();
+    protected final AtomicLong bytesRead = new AtomicLong();
+    protected final AtomicLong entriesDecoded = new AtomicLong();
+    protected final AtomicLong exactHits = new AtomicLong();
+    protected final AtomicLong exactMisses = new AtomicLong();
+    protected final AtomicLong prefixHits = new AtomicLong();
+    protected final AtomicLong prefixMisses = new AtomicLong();
+    protected final AtomicLongArray latency = new AtomicLongArray(24);
 
     public BCSReader(
         Class<?>[] keyTypes,
         Class<?>[] valueTypes,
         String file
+    ) throws IOException {
+        this(keyTypes, valueTypes, new FileSource(file));
+    }
+
+    public BCSReader(
+        Class<?>[] keyTypes,
+        Class<?>[] valueTypes,
+        Source source
     ) throws IOException {
         this.keyTypes = keyTypes;
         this.valueTypes = valueTypes;
-        this.file = new RandomAccessFile(file, "r");
+        this.source = source;
 
         // compute the key size
         int keySize = 0;
@@ -131,8 +303,19 @@ public class BCSReader {
         this.valueSizes = valueSizes;
 
         // now read the header
-        this.file.seek(0l);
-        this.blockCount = this.file.readInt();
+        this.blockCount = readInt(0l);
+    }
+
+    /**
+     * Read a big endian int.
+     * @param pos The file offset.
+     * @return The int value.
+     * @throws IOException
+     */
+    protected int readInt(long pos) throws IOException {
+        byte[] buf = new byte[4];
+        source.read(pos, buf, 0, 4);
+        return bytes2int(buf);
     }
 
     /**
@@ -140,14 +323,14 @@ public class BCSReader {
      * @param type The boxed java type
      * @return the byte count
      */
-    protected int type2size(final Class<?> type) {
+    protected static int type2size(final Class<?> type) {
         if (type == Byte.class || type == Boolean.class) {
             return 1;
         }
         if (type == Short.class || type == Character.class) {
             return 2;
         }
-        if (type == Integer.class || type == Float.class) {
+        if (type == Integer.class || type == Float.class || type == FixedPoint.class) {
             return 4;
         }
         if (type == Long.class || type == Double.class) {
@@ -195,6 +378,9 @@ public class BCSReader {
                  (bytes[7] & 0xffl)
             );
         }
+        if (type == FixedPoint.class) {
+            return FixedPoint.decode(bytes2int(bytes));
+        }
         if (type == Float.class) {
             return Float.intBitsToFloat((int)(
                 ((bytes[0] & 0xff) << 24) |
@@ -218,6 +404,36 @@ public class BCSReader {
         return null;
     }
 
+    /**
+     * Decode a big endian int.
+     * @param bytes The 4 byte representation.
+     * @return The int value.
+     */
+    protected static int bytes2int(byte[] bytes) {
+        return
+            ((bytes[0] & 0xff) << 24) |
+            ((bytes[1] & 0xff) << 16) |
+            ((bytes[2] & 0xff) <<  8) |
+             (bytes[3] & 0xff);
+    }
+
+    /**
+     * Decode a big endian long.
+     * @param bytes The 8 byte representation.
+     * @return The long value.
+     */
+    protected static long bytes2long(byte[] bytes) {
+        return
+            ((bytes[0] & 0xffl) << 56) |
+            ((bytes[1] & 0xffl) << 48) |
+            ((bytes[2] & 0xffl) << 40) |
+            ((bytes[3] & 0xffl) << 32) |
+            ((bytes[4] & 0xffl) << 24) |
+            ((bytes[5] & 0xffl) << 16) |
+            ((bytes[6] & 0xffl) <<  8) |
+             (bytes[7] & 0xffl);
+    }
+
     /**
      * Count the number of bytes needed to store values between the low and
      * high bound.
@@ -271,7 +487,7 @@ public class BCSReader {
      * @param o The boxed java value.
      * @return A byte representation of that value.
      */
-    protected byte[] type2bytes(final Object o) {
+    protected static byte[] type2bytes(final Object o) {
         // this method, while way to long, does nothing but a big "switch"
         // based on the type.
 
@@ -337,6 +553,21 @@ public class BCSReader {
         return null;
     }
 
+    /**
+     * Convert a boxed java value to the byte representation of a column type.
+     * This differs from {@link #type2bytes(Object)} for types that are
+     * decoded to another java type, e.g. {@link FixedPoint}.
+     * @param type The column type.
+     * @param o The boxed java value.
+     * @return A byte representation of that value.
+     */
+    protected static byte[] type2bytes(final Class<?> type, final Object o) {
+        if (type == FixedPoint.class) {
+            return type2bytes(FixedPoint.encode(((Number) o).doubleValue()));
+        }
+        return type2bytes(o);
+    }
+
     /**
      * Offset of block metadata.
      * @param blockid The block id.
@@ -366,10 +597,25 @@ public class BCSReader {
          * Header padded to 4kb + blockid * 4kb == offset
          */
         return (
-            ((4 + blockCount * (keySize*2 + valueSize*2 + 4)) + 4095) / 4096
+            ((4 + blockCount * (keySize*2 + valueSize*2 + 4) + extensionSize) + 4095) / 4096
         ) * 4096 + blockid * 4096;
     }
 
+    /**
+     * Read the header extension that follows the block metadata. Only valid
+     * for schemas that always write an extension.
+     * @return The extension payload.
+     * @throws IOException
+     */
+    protected byte[] readHeaderExtension() throws IOException {
+        final long pos = blockMetaOffset(blockCount);
+        byte[] extension = new byte[readInt(pos)];
+        source.read(pos + 4, extension, 0, extension.length);
+        extensionSize = 4 + extension.length;
+        bytesRead.addAndGet(extensionSize);
+        return extension;
+    }
+
     /**
      * Read a data block (4kb).
      * @param blockid The block number.
@@ -379,13 +625,109 @@ public class BCSReader {
     protected byte[] readBlock(int blockid) throws IOException {
         byte[] block = new byte[4096];
         int pos = blockOffset(blockid);
-        synchronized (file) {
-            file.seek(pos);
-            file.readFully(block);
-        }
+        source.read(pos, block, 0, block.length);
+        blocksRead.incrementAndGet();
+        bytesRead.addAndGet(4096);
         return block;
     }
 
+    /**
+     * Read a run of consecutive data blocks with a single read.
+     * @param blockid The first block number.
+     * @param count The number of blocks.
+     * @return The block data, count * 4kb.
+     * @throws IOException
+     */
+    protected byte[] readBlocks(int blockid, int count) throws IOException {
+        byte[] blocks = new byte[count * 4096];
+        readBlocks(blockid, count, blocks);
+        return blocks;
+    }
+
+    /**
+     * Read a run of consecutive data blocks into a reusable buffer.
+     * @param blockid The first block number.
+     * @param count The number of blocks.
+     * @param buf The buffer, at least count * 4kb.
+     * @throws IOException
+     */
+    protected void readBlocks(int blockid, int count, byte[] buf) throws IOException {
+        int pos = blockOffset(blockid);
+        source.read(pos, buf, 0, count * 4096);
+        blocksRead.addAndGet(count);
+        bytesRead.addAndGet(count * 4096);
+    }
+
+    /**
+     * Size of the metadata of a single block.
+     * @return The metadata size in bytes.
+     */
+    protected int blockMetaSize() {
+        return keySize * 2 + valueSize * 2 + 4;
+    }
+
+    /**
+     * Read the raw metadata of a run of consecutive blocks into a reusable
+     * buffer, see {@link #blockMetaOffset(int)} for the layout.
+     * @param blockid The first block number.
+     * @param count The number of blocks.
+     * @param buf The buffer, at least count * blockMetaSize().
+     * @throws IOException
+     */
+    protected void readBlockMetas(int blockid, int count, byte[] buf) throws IOException {
+        final int length = count * blockMetaSize();
+        source.read(blockMetaOffset(blockid), buf, 0, length);
+        bytesRead.addAndGet(length);
+    }
+
+    /**
+     * Read the metadata of a run of consecutive blocks with a single read.
+     * @param blockid The first block number.
+     * @param count The number of blocks.
+     * @return The block metadata.
+     * @throws IOException
+     */
+    protected BlockMeta[] getBlockMetas(int blockid, int count) throws IOException {
+        byte[] buf = new byte[count * blockMetaSize()];
+        readBlockMetas(blockid, count, buf);
+        BlockMeta[] metas = new BlockMeta[count];
+        int offset = 0;
+        for (int b = 0; b < count; b++) {
+            final int entries =
+                ((buf[offset] & 0xff) << 24) | ((buf[offset + 1] & 0xff) << 16) |
+                ((buf[offset + 2] & 0xff) << 8) | (buf[offset + 3] & 0xff);
+            offset += 4;
+            byte[][] keyLow = split(buf, offset, keySizes);
+            offset += keySize;
+            byte[][] keyHigh = split(buf, offset, keySizes);
+            offset += keySize;
+            byte[][] valueLow = split(buf, offset, valueSizes);
+            offset += valueSize;
+            byte[][] valueHigh = split(buf, offset, valueSizes);
+            offset += valueSize;
+            metas[b] = new BlockMeta(
+                blockid + b, entries, keyLow, keyHigh, valueLow, valueHigh);
+        }
+        return metas;
+    }
+
+    /**
+     * Split a byte sequence into fragments.
+     * @param buf The buffer.
+     * @param offset The start of the sequence.
+     * @param sizes The fragment sizes.
+     * @return The fragments.
+     */
+    private static byte[][] split(byte[] buf, int offset, int[] sizes) {
+        byte[][] res = new byte[sizes.length][];
+        for (int i = 0; i < sizes.length; i++) {
+            res[i] = new byte[sizes[i]];
+            System.arraycopy(buf, offset, res[i], 0, sizes[i]);
+            offset += sizes[i];
+        }
+        return res;
+    }
+
     /**
      * Read a key at the given offset. Return the byte array.
      * @param pos The file offset, where 0 is the head of the file.
@@ -394,10 +736,8 @@ public class BCSReader {
      */
     protected byte[][] readKeyAt(long pos) throws IOException {
         byte buf[] = new byte[keySize];
-        synchronized (file) {
-            file.seek(pos);
-            file.readFully(buf);
-        }
+        source.read(pos, buf, 0, buf.length);
+        bytesRead.addAndGet(keySize);
         byte res[][] = new byte[keySizes.length][];
         int offset = 0;
         for (int i = 0; i < keySizes.length; i++) {
@@ -417,10 +757,8 @@ public class BCSReader {
      */
     protected byte[][] readValueAt(long pos) throws IOException {
         byte buf[] = new byte[valueSize];
-        synchronized (file) {
-            file.seek(pos);
-            file.readFully(buf);
-        }
+        source.read(pos, buf, 0, buf.length);
+        bytesRead.addAndGet(valueSize);
         byte res[][] = new byte[valueSizes.length][];
         int offset = 0;
         for (int i = 0; i < valueSizes.length; i++) {
@@ -439,12 +777,8 @@ public class BCSReader {
      * @throws IOException
      */
     protected int blockEntryCount(int blockid) throws IOException {
-        int offset = blockMetaOffset(blockid);
-        int i = 0;
-        synchronized (file) {
-            file.seek(offset);
-            i = file.readInt();
-        }
+        int i = readInt(blockMetaOffset(blockid));
+        bytesRead.addAndGet(4);
         return i;
     }
 
@@ -514,7 +848,7 @@ public class BCSReader {
      * @return -1 if the left key is smaller, 0 if the keys are the same and
      *          1 if the left key is larger than the right key.
      */
-    protected int compare(byte[][] l, byte[][] r) {
+    protected static int compare(byte[][] l, byte[][] r) {
         final int len = Math.min(l.length, r.length);
         for (int i = 0; i < len; i++) {
             final byte[] li = l[i];
@@ -555,6 +889,7 @@ public class BCSReader {
 
         final byte[][] lowKey = lowBlockLimit(low);
         final byte[][] highKey = highBlockLimit(high);
+        fenceProbes.addAndGet(2);
 
         final int cmpLow = compare(lowKey, key);
         if (cmpLow == 1) {
@@ -577,6 +912,7 @@ public class BCSReader {
 
         final byte[][] lowHighKey = highBlockLimit(low);
         final byte[][] highLowKey = lowBlockLimit(high);
+        fenceProbes.addAndGet(2);
         final int cmpLowHigh = compare(lowHighKey, key);
         final int cmpHighLow = compare(highLowKey, key);
 
@@ -615,6 +951,7 @@ public class BCSReader {
         int mid = (low + high) / 2;
 
         final byte lowMidKey[][] = lowBlockLimit(mid);
+        fenceProbes.incrementAndGet();
 
         final int cmpLowMid = compare(lowMidKey, key);
 
@@ -623,6 +960,7 @@ public class BCSReader {
         }
 
         final byte highMidKey[][] = highBlockLimit(mid);
+        fenceProbes.incrementAndGet();
         final int cmpHighMid = compare(highMidKey, key);
 
         if (cmpHighMid == -1) {
@@ -686,6 +1024,12 @@ public class BCSReader {
                 offset += blockValueSize;
                 continue;
             }
+            // the block is done either way, count its decoded entries once
+            entriesDecoded.addAndGet(meta.count - count);
+            if (cmp == 1) {
+                // keys are sorted, we passed the key
+                return null;
+            }
             if (cmp == 0) {
                 // we have the right block, decode the value
 
@@ -709,6 +1053,7 @@ public class BCSReader {
                 return valuebuf;
             }
         }
+        entriesDecoded.addAndGet(meta.count);
         return null;
     }
 
@@ -721,11 +1066,26 @@ public class BCSReader {
      */
     protected BlockEntry[] scanFullBlock(BlockMeta meta, byte[][] key) throws IOException {
         ArrayList<BlockEntry> entries = new ArrayList<BlockEntry>();
+        scanFullBlock(meta, key, readBlock(meta.blockId), 0, entries);
+        return entries.toArray(new BlockEntry[entries.size()]);
+    }
 
-        System.out.println(meta);
-
-        byte[] block = readBlock(meta.blockId);
-        int offset = 0;
+    /**
+     * Decode all key/value pairs starting with a given key prefix from an
+     * already loaded block.
+     * @param meta The block metadata.
+     * @param key The key prefix, an empty key matches every entry.
+     * @param block The buffer holding the block data.
+     * @param offset The offset of the block in the buffer.
+     * @param entries Receives the matching entries.
+     */
+    protected void scanFullBlock(
+        BlockMeta meta,
+        byte[][] key,
+        byte[] block,
+        int offset,
+        ArrayList<BlockEntry> entries
+    ) {
 
         byte[][] keybuf = new byte[keySizes.length][];
         for (int i = 0; i < keySizes.length; i++) {
@@ -787,8 +1147,7 @@ public class BCSReader {
                 break;
             }
         }
-
-        return entries.toArray(new BlockEntry[entries.size()]);
+        entriesDecoded.addAndGet(meta.count - count);
     }
 
     /**
@@ -799,11 +1158,37 @@ public class BCSReader {
      * @throws IOException
      */
     public Object[] get(Object ... key) throws IOException {
+        final long start = System.nanoTime();
+        final Object[] result = search(key);
+        record(start, result != null ? exactHits : exactMisses);
+        return result;
+    }
+
+    private Object[] search(Object ... key) throws IOException {
         // encode key
         byte bkey[][] = new byte[key.length][];
         for (int i = 0; i < key.length; i++) {
             bkey[i] = type2bytes(key[i]);
         }
+        byte[][] value = search(bkey);
+        if (value == null) {
+            return null;
+        }
+        // transform value into
+        Object[] result = new Object[value.length];
+        for (int i = 0; i < value.length; i++) {
+            result[i] = bytes2type(valueTypes[i], value[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Retrieve the encoded value for an encoded key.
+     * @param bkey The encoded key.
+     * @return The encoded value or null if not found.
+     * @throws IOException
+     */
+    protected byte[][] search(byte[][] bkey) throws IOException {
         // we have a multi-byte sequence now, search for the key :-)
         BlockMeta[] meta = blockRangeSearch(bkey);
         if (meta == null) {
@@ -817,15 +1202,7 @@ public class BCSReader {
                 value = scanBlock(getBlockMeta(i), bkey);
             }
         }
-        if (value == null) {
-            return null;
-        }
-        // transform value into
-        Object[] result = new Object[value.length];
-        for (int i = 0; i < value.length; i++) {
-            result[i] = bytes2type(valueTypes[i], value[i]);
-        }
-        return result;
+        return value;
     }
 
     /**
@@ -835,6 +1212,13 @@ public class BCSReader {
      * @throws IOException
      */
     public BlockEntry[] getAll(Object ... key) throws IOException {
+        final long start = System.nanoTime();
+        final BlockEntry[] result = searchAll(key);
+        record(start, result != null && result.length > 0 ? prefixHits : prefixMisses);
+        return result;
+    }
+
+    private BlockEntry[] searchAll(Object ... key) throws IOException {
         byte bkey[][] = new byte[key.length][];
         for (int i = 0; i < key.length; i++) {
             bkey[i] = type2bytes(key[i]);
@@ -855,4 +1239,296 @@ public class BCSReader {
         return entries.toArray(new BlockEntry[entries.size()]);
     }
 
+    /**
+     * Account a finished lookup.
+     * @param start The System.nanoTime() at the start of the lookup.
+     * @param outcome The hit/miss counter to increment.
+     */
+    protected void record(long start, AtomicLong outcome) {
+        final long micros = (System.nanoTime() - start) / 1000;
+        int bucket = 63 - Long.numberOfLeadingZeros(Math.max(1, micros));
+        if (bucket >= latency.length()) {
+            bucket = latency.length() - 1;
+        }
+        latency.incrementAndGet(bucket);
+        outcome.incrementAndGet();
+        searches.incrementAndGet();
+    }
+
+    /**
+     * Retrieve a snapshot of the reader statistics.
+     * @return The current statistics.
+     */
+    public Stats getStats() {
+        long[] l = new long[latency.length()];
+        for (int i = 0; i < l.length; i++) {
+            l[i] = latency.get(i);
+        }
+        return new Stats(
+            searches.get(),
+            fenceProbes.get(),
+            blocksRead.get(),
+            bytesRead.get(),
+            entriesDecoded.get(),
+            exactHits.get(),
+            exactMisses.get(),
+            prefixHits.get(),
+            prefixMisses.get(),
+            l
+        );
+    }
+
+    /**
+     * Reset all statistics to zero.
+     */
+    public void resetStats() {
+        searches.set(0);
+        fenceProbes.set(0);
+        blocksRead.set(0);
+        bytesRead.set(0);
+        entriesDecoded.set(0);
+        exactHits.set(0);
+        exactMisses.set(0);
+        prefixHits.set(0);
+        prefixMisses.set(0);
+        for (int i = 0; i < latency.length(); i++) {
+            latency.set(i, 0);
+        }
+    }
+
+    /**
+     * Receiver for the results of a {@link #parallelScan}. It is always
+     * called from the thread that started the scan, so it does not have to
+     * be thread safe.
+     */
+    public interface ScanCollector {
+        /**
+         * Receive the matching entries of a block range.
+         * @param firstBlock The first block of the range.
+         * @param entries The matching entries of the range in key order, may be empty.
+         * @throws IOException
+         */
+        void collect(int firstBlock, BlockEntry[] entries) throws IOException;
+    }
+
+    /**
+     * Scan all entries with a given key prefix in parallel. The block range
+     * is split into tasks of blocksPerTask blocks, every task reads its
+     * blocks with a single read and decodes them independently. At most
+     * window tasks are in flight, which bounds the memory of a full table
+     * scan.
+     * @param executor The executor running the decode tasks.
+     * @param window The maximum number of tasks in flight, usually a small
+     *               multiple of the executor parallelism.
+     * @param blocksPerTask The number of 4kb blocks per task.
+     * @param ordered True to deliver the results in key order, false to
+     *                deliver them as soon as a task completes.
+     * @param collector The result receiver.
+     * @param key The key prefix, no key scans the whole file.
+     * @return The number of entries delivered.
+     * @throws IOException
+     */
+    public long parallelScan(
+        ExecutorService executor,
+        int window,
+        int blocksPerTask,
+        boolean ordered,
+        ScanCollector collector,
+        Object ... key
+    ) throws IOException {
+        if (window < 1 || blocksPerTask < 1) {
+            throw new IllegalArgumentException("window and blocksPerTask must be positive");
+        }
+        final byte[][] bkey = new byte[key.length][];
+        for (int i = 0; i < key.length; i++) {
+            bkey[i] = type2bytes(key[i]);
+        }
+        final int first;
+        final int last;
+        if (bkey.length == 0) {
+            first = 0;
+            last = blockCount - 1;
+        } else {
+            BlockMeta[] meta = blockRangeSearch(bkey);
+            if (meta == null) {
+                return 0;
+            }
+            first = meta[0].blockId;
+            last = meta[1].blockId;
+        }
+
+        final ExecutorCompletionService<BlockEntry[]> completion =
+            new ExecutorCompletionService<BlockEntry[]>(executor);
+        final ArrayDeque<Future<BlockEntry[]>> inFlight =
+            new ArrayDeque<Future<BlockEntry[]>>(window);
+        final HashMap<Future<BlockEntry[]>, Integer> starts =
+            new HashMap<Future<BlockEntry[]>, Integer>();
+        long delivered = 0;
+        int next = first;
+        try {
+            while (next <= last || !inFlight.isEmpty()) {
+                while (next <= last && inFlight.size() < window) {
+                    final int from = next;
+                    final int count = Math.min(blocksPerTask, last - from + 1);
+                    final Callable<BlockEntry[]> task = new Callable<BlockEntry[]>() {
+                        public BlockEntry[] call() throws IOException {
+                            return scanBlocks(from, count, bkey);
+                        }
+                    };
+                    // ordered scans must not keep finished tasks in the completion queue
+                    final Future<BlockEntry[]> f =
+                        ordered ? executor.submit(task) : completion.submit(task);
+                    inFlight.add(f);
+                    starts.put(f, from);
+                    next += count;
+                }
+                final Future<BlockEntry[]> done;
+                if (ordered) {
+                    done = inFlight.poll();
+                } else {
+                    done = completion.take();
+                    inFlight.remove(done);
+                }
+                BlockEntry[] entries = get(done);
+                delivered += entries.length;
+                collector.collect(starts.remove(done), entries);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Parallel scan interrupted");
+        } finally {
+            // never interrupt running tasks, they share the source
+            for (Future<BlockEntry[]> f : inFlight) {
+                f.cancel(false);
+            }
+        }
+        return delivered;
+    }
+
+    /**
+     * Wait for a scan task.
+     * @param f The task.
+     * @return The task result.
+     * @throws IOException If the task failed.
+     * @throws InterruptedException
+     */
+    private static BlockEntry[] get(Future<BlockEntry[]> f)
+        throws IOException, InterruptedException
+    {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Decode a run of blocks, a single task of {@link #parallelScan}.
+     * @param first The first block.
+     * @param count The number of blocks.
+     * @param key The encoded key prefix.
+     * @return The matching entries.
+     * @throws IOException
+     */
+    protected BlockEntry[] scanBlocks(int first, int count, byte[][] key) throws IOException {
+        final BlockMeta[] metas = getBlockMetas(first, count);
+        final byte[] blocks = readBlocks(first, count);
+        ArrayList<BlockEntry> entries = new ArrayList<BlockEntry>();
+        for (int b = 0; b < count; b++) {
+            scanFullBlock(metas[b], key, blocks, b * 4096, entries);
+        }
+        return entries.toArray(new BlockEntry[entries.size()]);
+    }
+
+    /**
+     * Sequential cursor over all entries, in key order. The key and value
+     * buffers are reused for every entry, copy them if they are needed
+     * after the next call to {@link #next()}.
+     */
+    public final class Cursor {
+        public final byte[][] key = new byte[keySizes.length][];
+        public final byte[][] value = new byte[valueSizes.length][];
+        private int block = -1;
+        private int remaining = 0;
+        private int offset = 0;
+        private byte[] data;
+        private int[] blockKeySizes;
+        private int[] blockValueSizes;
+
+        private Cursor() {
+            for (int i = 0; i < keySizes.length; i++) {
+                key[i] = new byte[keySizes[i]];
+            }
+            for (int i = 0; i < valueSizes.length; i++) {
+                value[i] = new byte[valueSizes[i]];
+            }
+        }
+
+        /**
+         * Advance to the next entry.
+         * @return False if there are no more entries.
+         * @throws IOException
+         */
+        public boolean next() throws IOException {
+            while (remaining == 0) {
+                if (block + 1 >= blockCount) {
+                    return false;
+                }
+                block++;
+                BlockMeta meta = getBlockMeta(block);
+                data = readBlock(block);
+                offset = 0;
+                remaining = meta.count;
+                // the cursor decodes every entry of the block
+                entriesDecoded.addAndGet(meta.count);
+                blockKeySizes = requiredSizes(meta.keyLow, meta.keyHigh);
+                blockValueSizes = requiredSizes(meta.valueLow, meta.valueHigh);
+                for (int i = 0; i < keySizes.length; i++) {
+                    System.arraycopy(meta.keyLow[i], 0, key[i], 0, keySizes[i]);
+                }
+                for (int i = 0; i < valueSizes.length; i++) {
+                    System.arraycopy(meta.valueLow[i], 0, value[i], 0, valueSizes[i]);
+                }
+            }
+            for (int i = 0; i < keySizes.length; i++) {
+                if (blockKeySizes[i] > 0) {
+                    System.arraycopy(data, offset, key[i],
+                        keySizes[i] - blockKeySizes[i], blockKeySizes[i]);
+                    offset += blockKeySizes[i];
+                }
+            }
+            for (int i = 0; i < valueSizes.length; i++) {
+                if (blockValueSizes[i] > 0) {
+                    System.arraycopy(data, offset, value[i],
+                        valueSizes[i] - blockValueSizes[i], blockValueSizes[i]);
+                    offset += blockValueSizes[i];
+                }
+            }
+            remaining--;
+            return true;
+        }
+    }
+
+    /**
+     * Create a cursor over all entries of the file.
+     * @return A new cursor, positioned before the first entry.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Close the underlying source.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        source.close();
+    }
+
 }
@@ -0,0 +1,282 @@
+package org.gfd.gsmlocation.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streaming writer for compact store files, see {@link BCSReader} for the
+ * file format. Entries must be appended in strictly ascending key order.
+ * Data blocks are spooled to a temporary file while the (small) block
+ * metadata is kept in memory, memory usage is thus bounded by a single block
+ * and ~70 bytes per 4kb block.
+ */
+public class BCSWriter {
+
+    protected final Class<?>[] keyTypes;
+    protected final Class<?>[] valueTypes;
+    protected final int[] keySizes;
+    protected final int[] valueSizes;
+    protected final File file;
+    protected final File spool;
+    protected final OutputStream blocks;
+    protected final ByteArrayOutputStream metaBuffer = new ByteArrayOutputStream();
+    protected final DataOutputStream meta = new DataOutputStream(metaBuffer);
+    protected int blockCount = 0;
+    protected long entryCount = 0;
+
+    // state of the block that is currently filled
+    protected final byte[][][] pendingKeys = new byte[4096][][];
+    protected final byte[][][] pendingValues = new byte[4096][][];
+    protected int pending = 0;
+    protected final int[] keyPrefix;
+    protected final byte[][] valueLow;
+    protected final byte[][] valueHigh;
+    protected byte[][] lastKey = null;
+    protected byte[] extension = null;
+
+    public BCSWriter(
+        Class<?>[] keyTypes,
+        Class<?>[] valueTypes,
+        String file
+    ) throws IOException {
+        this.keyTypes = keyTypes;
+        this.valueTypes = valueTypes;
+        this.keySizes = new int[keyTypes.length];
+        for (int i = 0; i < keyTypes.length; i++) {
+            keySizes[i] = BCSReader.type2size(keyTypes[i]);
+        }
+        this.valueSizes = new int[valueTypes.length];
+        for (int i = 0; i < valueTypes.length; i++) {
+            valueSizes[i] = BCSReader.type2size(valueTypes[i]);
+        }
+        this.keyPrefix = new int[keyTypes.length];
+        this.valueLow = new byte[valueTypes.length][];
+        this.valueHigh = new byte[valueTypes.length][];
+        this.file = new File(file);
+        this.spool = new File(file + ".blocks");
+        this.blocks = new BufferedOutputStream(new FileOutputStream(spool), 64 * 1024);
+    }
+
+    /**
+     * Append a boxed key/value pair.
+     * @param key The key, larger than all previous keys.
+     * @param value The value.
+     * @throws IOException
+     */
+    public void append(Object[] key, Object[] value) throws IOException {
+        byte[][] bkey = new byte[key.length][];
+        for (int i = 0; i < key.length; i++) {
+            bkey[i] = BCSReader.type2bytes(key[i]);
+        }
+        byte[][] bvalue = new byte[value.length][];
+        for (int i = 0; i < value.length; i++) {
+            bvalue[i] = BCSReader.type2bytes(valueTypes[i], value[i]);
+        }
+        append(bkey, bvalue);
+    }
+
+    /**
+     * Append an encoded key/value pair. The arrays are copied.
+     * @param key The key fragments, larger than all previous keys.
+     * @param value The value fragments.
+     * @throws IOException
+     */
+    public void append(byte[][] key, byte[][] value) throws IOException {
+        if (lastKey != null && BCSReader.compare(lastKey, key) >= 0) {
+            throw new IOException("Keys must be appended in ascending order");
+        }
+        key = copy(key);
+        value = copy(value);
+        if (pending > 0 && !fits(key, value)) {
+            flushBlock();
+        }
+        if (pending == 0) {
+            for (int i = 0; i < keySizes.length; i++) {
+                keyPrefix[i] = keySizes[i];
+            }
+            for (int i = 0; i < valueSizes.length; i++) {
+                valueLow[i] = value[i];
+                valueHigh[i] = value[i];
+            }
+        } else {
+            for (int i = 0; i < keySizes.length; i++) {
+                keyPrefix[i] = Math.min(keyPrefix[i], commonPrefix(pendingKeys[0][i], key[i]));
+            }
+            for (int i = 0; i < valueSizes.length; i++) {
+                if (compare(value[i], valueLow[i]) < 0) valueLow[i] = value[i];
+                if (compare(value[i], valueHigh[i]) > 0) valueHigh[i] = value[i];
+            }
+        }
+        pendingKeys[pending] = key;
+        pendingValues[pending] = value;
+        pending++;
+        lastKey = key;
+        entryCount++;
+    }
+
+    /**
+     * Check if an entry can be added to the current block. The reader derives
+     * the stored suffix length of every key fragment from the first and the
+     * last key of a block, so every key must share at least the common prefix
+     * of these two keys. Values are bound by their per fragment min/max.
+     * @param key The candidate key.
+     * @param value The candidate value.
+     * @return True if the entry fits.
+     */
+    protected boolean fits(byte[][] key, byte[][] value) {
+        if (pending >= pendingKeys.length) {
+            return false;
+        }
+        int size = 0;
+        for (int i = 0; i < keySizes.length; i++) {
+            int p = commonPrefix(pendingKeys[0][i], key[i]);
+            if (p > keyPrefix[i]) {
+                return false;
+            }
+            size += keySizes[i] - p;
+        }
+        for (int i = 0; i < valueSizes.length; i++) {
+            byte[] low = compare(value[i], valueLow[i]) < 0 ? value[i] : valueLow[i];
+            byte[] high = compare(value[i], valueHigh[i]) > 0 ? value[i] : valueHigh[i];
+            size += valueSizes[i] - commonPrefix(low, high);
+        }
+        return (pending + 1) * size <= 4096;
+    }
+
+    /**
+     * Write the current block to the spool file and record its metadata.
+     * @throws IOException
+     */
+    protected void flushBlock() throws IOException {
+        if (pending == 0) {
+            return;
+        }
+        final byte[][] keyLow = pendingKeys[0];
+        final byte[][] keyHigh = pendingKeys[pending - 1];
+        meta.writeInt(pending);
+        for (byte[] k : keyLow) meta.write(k);
+        for (byte[] k : keyHigh) meta.write(k);
+        for (byte[] v : valueLow) meta.write(v);
+        for (byte[] v : valueHigh) meta.write(v);
+
+        int[] keySuffix = new int[keySizes.length];
+        for (int i = 0; i < keySizes.length; i++) {
+            keySuffix[i] = keySizes[i] - commonPrefix(keyLow[i], keyHigh[i]);
+        }
+        int[] valueSuffix = new int[valueSizes.length];
+        for (int i = 0; i < valueSizes.length; i++) {
+            valueSuffix[i] = valueSizes[i] - commonPrefix(valueLow[i], valueHigh[i]);
+        }
+        byte[] block = new byte[4096];
+        int offset = 0;
+        for (int e = 0; e < pending; e++) {
+            for (int i = 0; i < keySizes.length; i++) {
+                System.arraycopy(pendingKeys[e][i], keySizes[i] - keySuffix[i],
+                    block, offset, keySuffix[i]);
+                offset += keySuffix[i];
+            }
+            for (int i = 0; i < valueSizes.length; i++) {
+                System.arraycopy(pendingValues[e][i], valueSizes[i] - valueSuffix[i],
+                    block, offset, valueSuffix[i]);
+                offset += valueSuffix[i];
+            }
+            pendingKeys[e] = null;
+            pendingValues[e] = null;
+        }
+        blocks.write(block);
+        blockCount++;
+        pending = 0;
+    }
+
+    /**
+     * Set a header extension, written after the block metadata. Readers must
+     * know from the schema that the file has an extension.
+     * @param extension The extension payload.
+     */
+    public void setHeaderExtension(byte[] extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * Number of entries written so far.
+     * @return The entry count.
+     */
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Finish the file: write the header, the block metadata and the spooled
+     * blocks.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        flushBlock();
+        blocks.close();
+        meta.flush();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        try {
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(blockCount);
+            metaBuffer.writeTo(header);
+            int headerSize = 4 + metaBuffer.size();
+            if (extension != null) {
+                header.writeInt(extension.length);
+                header.write(extension);
+                headerSize += 4 + extension.length;
+            }
+            int padding = ((headerSize + 4095) / 4096) * 4096 - headerSize;
+            header.write(new byte[padding]);
+            InputStream in = new BufferedInputStream(new FileInputStream(spool), 64 * 1024);
+            try {
+                byte[] buf = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buf)) > 0) {
+                    header.write(buf, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            header.flush();
+        } finally {
+            out.close();
+            spool.delete();
+        }
+    }
+
+    private static byte[][] copy(byte[][] b) {
+        byte[][] c = new byte[b.length][];
+        for (int i = 0; i < b.length; i++) {
+            c[i] = b[i].clone();
+        }
+        return c;
+    }
+
+    private static int commonPrefix(byte[] l, byte[] r) {
+        int i = 0;
+        while (i < l.length && l[i] == r[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int compare(byte[] l, byte[] r) {
+        for (int i = 0; i < l.length; i++) {
+            final int lv = l[i] & 0xff;
+            final int rv = r[i] & 0xff;
+            if (lv != rv) {
+                return lv < rv ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,578 @@
+package org.gfd.gsmlocation.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cache keyed by a cell (radio, mcc, mnc, lac, cid) tuple, packed into two longs.
+ * Entries are either hits (a value) or misses (the miss marker given at
+ * construction time, cached negative lookups), every entry has its own
+ * time to live.<br />
+ * The cache is split into independently locked segments, each an open
+ * addressing table with linear probing. Eviction follows the CLOCK
+ * approximation of LRU: a hit sets the referenced bit of a slot, the clock
+ * hand clears referenced bits and picks the first slot without one.<br />
+ * A full segment only admits a new entry if its key was requested more
+ * often than the key of the eviction candidate (TinyLFU). Request
+ * frequencies are estimated with a 4 bit count-min sketch per segment that
+ * is halved periodically, so a burst of one-off keys (e.g. a scan of
+ * neighbour cells) can not push out the cells that are seen every day.<br />
+ * Lookups do not allocate and only lock the segment of the key.
+ * @param <V> The value type.
+ */
+public class CellCache<V> {
+
+    /**
+     * Encoding of an unknown (null) mcc or mnc, known codes must be smaller
+     * (they have at most three digits).
+     */
+    public final static int NONE = 0xffffff;
+
+    /**
+     * Entry types, used to index the statistics.
+     */
+    public final static int HIT = 0;
+    public final static int MISS = 1;
+
+    protected final static int SEGMENTS = 16;
+
+    /**
+     * Immutable snapshot of the cache statistics, per entry type counters are
+     * indexed by {@link #HIT} and {@link #MISS}.
+     */
+    public final static class Stats {
+        private final long[] served;
+        private final long[] evicted;
+        private final long[] expired;
+        private final long[] rejected;
+        /** Lookups without a (valid) entry. */
+        public final long absent;
+
+        public Stats(long[] served, long[] evicted, long[] expired, long[] rejected, long absent) {
+            this.served = served.clone();
+            this.evicted = evicted.clone();
+            this.expired = expired.clone();
+            this.rejected = rejected.clone();
+            this.absent = absent;
+        }
+
+        /**
+         * Lookups answered by an entry of the type.
+         * @param type The entry type.
+         * @return The number of lookups.
+         */
+        public long served(int type) {
+            return served[type];
+        }
+
+        /**
+         * Entries of the type dropped to make room for another one.
+         * @param type The entry type.
+         * @return The number of entries.
+         */
+        public long evicted(int type) {
+            return evicted[type];
+        }
+
+        /**
+         * Entries of the type dropped because their time to live passed.
+         * @param type The entry type.
+         * @return The number of entries.
+         */
+        public long expired(int type) {
+            return expired[type];
+        }
+
+        /**
+         * New entries of the type not admitted because they were requested too rarely.
+         * @param type The entry type.
+         * @return The number of entries.
+         */
+        public long rejected(int type) {
+            return rejected[type];
+        }
+
+        /**
+         * Fraction of lookups answered from the cache.
+         * @return The hit ratio, 0 if there were no lookups.
+         */
+        public double hitRatio() {
+            final long served = this.served[HIT] + this.served[MISS];
+            return served + absent == 0 ? 0d : (double) served / (served + absent);
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("CACHE(absent=").append(absent);
+            String[] names = new String[]{"hit", "miss"};
+            for (int t = 0; t < names.length; t++) {
+                sb.append(",").append(names[t]).append("=[served=").append(served[t]);
+                sb.append(",evicted=").append(evicted[t]);
+                sb.append(",expired=").append(expired[t]);
+                sb.append(",rejected=").append(rejected[t]).append("]");
+            }
+            sb.append(")");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A single table with its frequency sketch. Empty slots have a null value.
+     */
+    protected final static class Segment {
+        final long[] hi;
+        final long[] lo;
+        final Object[] values;
+        final long[] expires;
+        final boolean[] referenced;
+        final int mask;
+        final int capacity;
+        int size = 0;
+        int hand = 0;
+
+        /**
+         * Count-min sketch, 4 rows of 4 bit counters packed into longs.
+         */
+        final long[] sketch;
+        final int sketchMask;
+        int additions = 0;
+
+        // statistics, see Stats
+        final long[] served = new long[2];
+        final long[] evicted = new long[2];
+        final long[] expired = new long[2];
+        final long[] rejected = new long[2];
+        long absent = 0;
+
+        Segment(int capacity) {
+            // keep the load factor at or below 0.5
+            int slots = 2;
+            while (slots < capacity * 2) {
+                slots <<= 1;
+            }
+            this.hi = new long[slots];
+            this.lo = new long[slots];
+            this.values = new Object[slots];
+            this.expires = new long[slots];
+            this.referenced = new boolean[slots];
+            this.mask = slots - 1;
+            this.capacity = capacity;
+            // 16 counters per long, 4 rows: one long per slot gives 4 counters per row and slot
+            this.sketch = new long[slots];
+            this.sketchMask = slots - 1;
+        }
+
+        int find(long h, long l, int slot) {
+            while (values[slot] != null) {
+                if (hi[slot] == h && lo[slot] == l) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return ~slot;
+        }
+
+        void set(int slot, long h, long l, Object value, long expiry) {
+            hi[slot] = h;
+            lo[slot] = l;
+            values[slot] = value;
+            expires[slot] = expiry;
+            referenced[slot] = false;
+        }
+
+        /**
+         * Remove a slot, shifting back all following entries of the probe
+         * sequence so lookups never hit a gap.
+         * @param slot The slot to clear.
+         */
+        void remove(int slot) {
+            int gap = slot;
+            int next = (gap + 1) & mask;
+            while (values[next] != null) {
+                final int home = home(hi[next], lo[next]) & mask;
+                // move the entry if its home is not within (gap, next]
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    hi[gap] = hi[next];
+                    lo[gap] = lo[next];
+                    values[gap] = values[next];
+                    expires[gap] = expires[next];
+                    referenced[gap] = referenced[next];
+                    gap = next;
+                }
+                next = (next + 1) & mask;
+            }
+            values[gap] = null;
+            referenced[gap] = false;
+            size--;
+        }
+
+        /**
+         * Advance the clock hand to the next eviction candidate, see the
+         * class documentation.
+         * @return The candidate slot.
+         */
+        int victim() {
+            while (true) {
+                hand = (hand + 1) & mask;
+                if (values[hand] == null) continue;
+                if (referenced[hand]) {
+                    referenced[hand] = false;
+                    continue;
+                }
+                return hand;
+            }
+        }
+
+        /**
+         * Record a request of a key in the frequency sketch.
+         * @param hash The key hash.
+         */
+        void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < 4; row++) {
+                final int index = index(hash, row);
+                final int shift = shift(hash, row);
+                if (((sketch[index] >>> shift) & 0xf) < 15) {
+                    sketch[index] += 1l << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= 10 * capacity) {
+                // age all counters, old popularity fades out
+                for (int i = 0; i < sketch.length; i++) {
+                    sketch[i] = (sketch[i] >>> 1) & 0x7777777777777777l;
+                }
+                additions /= 2;
+            }
+        }
+
+        /**
+         * Estimate the request frequency of a key.
+         * @param hash The key hash.
+         * @return The estimated frequency, 0..15.
+         */
+        int frequency(int hash) {
+            int min = 15;
+            for (int row = 0; row < 4; row++) {
+                min = Math.min(min, (int) ((sketch[index(hash, row)] >>> shift(hash, row)) & 0xf));
+            }
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ (hash >>> 16)) * (0x2545F491 + 2 * row);
+            return (h >>> 8) & sketchMask;
+        }
+
+        private int shift(int hash, int row) {
+            // every row owns 4 of the 16 counters of a long
+            return (row * 4 + ((hash >>> (row * 2)) & 3)) * 4;
+        }
+
+        void clear() {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = null;
+                referenced[i] = false;
+            }
+            size = 0;
+        }
+    }
+
+    protected final Segment[] segments = new Segment[SEGMENTS];
+    protected final V miss;
+
+    /**
+     * Create a cache.
+     * @param capacity The maximum number of entries.
+     * @param miss The marker value of cached misses, compared by identity.
+     */
+    public CellCache(int capacity, V miss) {
+        final int perSegment = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        this.miss = miss;
+    }
+
+    /**
+     * Pack the operator part of a GSM cell key.
+     * @param mcc The mobile country code, or null.
+     * @param mnc The mobile network code, or null.
+     * @return The high key half.
+     */
+    public static long hi(Integer mcc, Integer mnc) {
+        return hi(TowerReader.RADIO_GSM, mcc, mnc);
+    }
+
+    /**
+     * Pack the radio and operator part of a cell key.
+     * @param radio The radio type, see TowerReader.RADIO_*.
+     * @param mcc The mobile country code (below {@link #NONE}), or null.
+     * @param mnc The mobile network code (below {@link #NONE}), or null.
+     * @return The high key half.
+     */
+    public static long hi(int radio, Integer mcc, Integer mnc) {
+        return hi(radio, mcc == null ? NONE : mcc.intValue(), mnc == null ? NONE : mnc.intValue());
+    }
+
+    /**
+     * Pack the radio and operator part of a cell key without boxing.
+     * @param radio The radio type, see TowerReader.RADIO_*.
+     * @param mcc The mobile country code (below {@link #NONE}), negative if unknown.
+     * @param mnc The mobile network code (below {@link #NONE}), negative if unknown.
+     * @return The high key half.
+     */
+    public static long hi(int radio, int mcc, int mnc) {
+        final int c = mcc < 0 ? NONE : mcc & NONE;
+        final int n = mnc < 0 ? NONE : mnc & NONE;
+        return ((long) radio << 48) | ((long) c << 24) | n;
+    }
+
+    /**
+     * Pack the cell part of a GSM cell key.
+     * @param lac The location area code.
+     * @param cid The cell id.
+     * @return The low key half.
+     */
+    public static long lo(int lac, int cid) {
+        return ((long) lac << 32) | (cid & 0xffffffffl);
+    }
+
+    /**
+     * Pack the cell part of a cell key. GSM cells use the full 32 bit lac
+     * and cid, LTE and NR cells a 24 bit tracking area and a 36 bit cid.
+     * @param radio The radio type, see TowerReader.RADIO_*.
+     * @param lac The location (or tracking) area code.
+     * @param cid The unsigned cell id.
+     * @return The low key half.
+     */
+    public static long lo(int radio, int lac, long cid) {
+        if (radio == TowerReader.RADIO_GSM) {
+            return lo(lac, (int) cid);
+        }
+        return ((long) (lac & 0xffffff) << 36) | (cid & 0xfffffffffl);
+    }
+
+    protected static int home(long h, long l) {
+        long x = h * 0x9E3779B97F4A7C15l + l;
+        x ^= x >>> 32;
+        x *= 0x9E3779B97F4A7C15l;
+        return (int) (x ^ (x >>> 29));
+    }
+
+    protected final Segment segment(int hash) {
+        return segments[(hash >>> 28) & (SEGMENTS - 1)];
+    }
+
+    private int type(Object value) {
+        return value == miss ? MISS : HIT;
+    }
+
+    /**
+     * Retrieve a cached entry.
+     * @param mcc The mobile country code, or null.
+     * @param mnc The mobile network code, or null.
+     * @param cid The cell id.
+     * @param lac The location area code.
+     * @return The value, the miss marker, or null if nothing valid is cached.
+     */
+    public V get(Integer mcc, Integer mnc, int cid, int lac) {
+        return get(hi(mcc, mnc), lo(lac, cid));
+    }
+
+    /**
+     * Retrieve a cached entry by its packed key.
+     * @param h The high key half, see {@link #hi(Integer, Integer)}.
+     * @param l The low key half, see {@link #lo(int, int)}.
+     * @return The value, the miss marker, or null if nothing valid is cached.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long h, long l) {
+        final int hash = home(h, l);
+        final Segment s = segment(hash);
+        synchronized (s) {
+            s.increment(hash);
+            final int slot = s.find(h, l, hash & s.mask);
+            if (slot < 0) {
+                s.absent++;
+                return null;
+            }
+            final int type = type(s.values[slot]);
+            if (s.expires[slot] - System.nanoTime() < 0) {
+                s.remove(slot);
+                s.expired[type]++;
+                s.absent++;
+                return null;
+            }
+            s.referenced[slot] = true;
+            s.served[type]++;
+            return (V) s.values[slot];
+        }
+    }
+
+    /**
+     * Insert or replace an entry.
+     * @param mcc The mobile country code, or null.
+     * @param mnc The mobile network code, or null.
+     * @param cid The cell id.
+     * @param lac The location area code.
+     * @param value The value or the miss marker, not null.
+     * @param ttl The time to live in milliseconds, 0 for no expiry.
+     */
+    public void put(Integer mcc, Integer mnc, int cid, int lac, V value, long ttl) {
+        put(hi(mcc, mnc), lo(lac, cid), value, ttl);
+    }
+
+    /**
+     * Insert or replace an entry by its packed key. If the segment is full
+     * the entry is only admitted if it is requested more often than the
+     * eviction candidate.
+     * @param h The high key half.
+     * @param l The low key half.
+     * @param value The value or the miss marker, not null.
+     * @param ttl The time to live in milliseconds, 0 for no expiry.
+     * @return True if the entry was stored.
+     */
+    public boolean put(long h, long l, V value, long ttl) {
+        if (value == null) {
+            throw new NullPointerException("null values are not supported");
+        }
+        final long expiry = ttl > 0
+            ? System.nanoTime() + ttl * 1000000l
+            : System.nanoTime() + Long.MAX_VALUE / 2;
+        final int hash = home(h, l);
+        final Segment s = segment(hash);
+        synchronized (s) {
+            int slot = s.find(h, l, hash & s.mask);
+            if (slot >= 0) {
+                s.values[slot] = value;
+                s.expires[slot] = expiry;
+                return true;
+            }
+            if (s.size >= s.capacity) {
+                final int victim = s.victim();
+                final int victimType = type(s.values[victim]);
+                if (s.expires[victim] - System.nanoTime() < 0) {
+                    s.expired[victimType]++;
+                } else if (s.frequency(hash) <=
+                           s.frequency(home(s.hi[victim], s.lo[victim]))) {
+                    s.rejected[type(value)]++;
+                    return false;
+                } else {
+                    s.evicted[victimType]++;
+                }
+                s.remove(victim);
+                // the removal may have shifted the probe sequence
+                slot = s.find(h, l, hash & s.mask);
+            }
+            s.set(~slot, h, l, value, expiry);
+            s.size++;
+            return true;
+        }
+    }
+
+    /**
+     * Drop all entries.
+     */
+    public void evictAll() {
+        for (Segment s : segments) {
+            synchronized (s) {
+                s.clear();
+            }
+        }
+    }
+
+    /**
+     * Drop all cached misses, keeping the hits.
+     */
+    public void evictMisses() {
+        for (Segment s : segments) {
+            synchronized (s) {
+                int slot = 0;
+                // a removal shifts the following entries back into the current slot,
+                // so only advance if nothing was removed
+                while (slot < s.values.length) {
+                    if (s.values[slot] != null && s.values[slot] == miss) {
+                        s.remove(slot);
+                    } else {
+                        slot++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Retrieve the most frequently requested hit entries.
+     * @param max The maximum number of entries.
+     * @return The values of the hottest valid hit entries, most frequent first.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> hottest(int max) {
+        ArrayList<Object> values = new ArrayList<Object>();
+        long[] ranked = new long[64];
+        int count = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                final long now = System.nanoTime();
+                for (int slot = 0; slot < s.values.length; slot++) {
+                    final Object value = s.values[slot];
+                    if (value == null || value == miss || s.expires[slot] - now < 0) continue;
+                    if (count == ranked.length) {
+                        ranked = Arrays.copyOf(ranked, count * 2);
+                    }
+                    // frequency in the high bits, so sorting ranks by frequency
+                    ranked[count++] = ((long) s.frequency(home(s.hi[slot], s.lo[slot])) << 32)
+                                    | values.size();
+                    values.add(value);
+                }
+            }
+        }
+        Arrays.sort(ranked, 0, count);
+        ArrayList<V> result = new ArrayList<V>(Math.min(max, count));
+        for (int i = count - 1; i >= 0 && result.size() < max; i--) {
+            result.add((V) values.get((int) ranked[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Number of cached entries, including expired entries that were not yet dropped.
+     * @return The entry count.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                size += s.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Retrieve a snapshot of the cache statistics.
+     * @return The statistics, summed over all segments.
+     */
+    public Stats getStats() {
+        long[] served = new long[2];
+        long[] evicted = new long[2];
+        long[] expired = new long[2];
+        long[] rejected = new long[2];
+        long absent = 0;
+        for (Segment s : segments) {
+            synchronized (s) {
+                for (int t = 0; t < 2; t++) {
+                    served[t] += s.served[t];
+                    evicted[t] += s.evicted[t];
+                    expired[t] += s.expired[t];
+                    rejected[t] += s.rejected[t];
+                }
+                absent += s.absent;
+            }
+        }
+        return new Stats(served, evicted, expired, rejected, absent);
+    }
+
+}
@@ -1,24 +1,34 @@
 package org.gfd.gsmlocation.db;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.gfd.gsmlocation.R;
 import org.gfd.gsmlocation.model.CellInfo;
 import org.tukaani.xz.XZInputStream;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.telephony.NeighboringCellInfo;
 import android.util.Log;
-import android.util.LruCache;
 
 public class CellTowerDatabase {
 
@@ -28,120 +38,794 @@ public class CellTowerDatabase {
         return ourInstance;
     }
 
-    private BCSReader reader = null;
+    /**
+     * Handle of the world database, null in sharded mode or while the db is not yet open.
+     * Replaced as a whole by {@link #replaceDatabase(File)}.
+     */
+    private volatile ReaderHandle world = null;
+
+    /**
+     * Incremented whenever the data changes (new db, shard or overlay). Query results computed
+     * under an older generation are not cached.
+     */
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * Per country (MCC) shards, keyed by MCC. Empty if the app ships only the world database.
+     */
+    private final HashMap<Integer, Shard> shards = new HashMap<Integer, Shard>();
+
+    /**
+     * All currently opened shard readers, replaced (never modified) whenever a shard opens.
+     */
+    private volatile TowerReader[] shardReaders = new TowerReader[0];
+
+    /**
+     * Background executor for shard extraction, so telephony callbacks never wait for it.
+     */
+    private final ExecutorService shardLoader = Executors.newSingleThreadExecutor();
+
+    /**
+     * Maximum number of location areas kept in memory, see {@link #preload(int)}.
+     */
+    private static final int MAX_LAC_TABLES = 16;
+
+    /**
+     * Preloaded location areas of the world database, least recently used first.
+     */
+    private final LinkedHashMap<Long, LacTable> lacTables =
+        new LinkedHashMap<Long, LacTable>(MAX_LAC_TABLES, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Long, LacTable> eldest) {
+                return size() > MAX_LAC_TABLES;
+            }
+        };
+
+    /**
+     * Location areas that are currently being loaded, guarded by lacTables.
+     */
+    private final HashSet<Long> lacLoading = new HashSet<Long>();
+
+    /**
+     * Incremental updates on top of the world database or the shards.
+     */
+    private final OverlayStack overlays = new OverlayStack();
+
+    /**
+     * True as soon as queries can be answered (world db opened or shards registered).
+     */
+    private volatile boolean ready = false;
+
+    /**
+     * Queries can not be answered yet, only the hot set is available.
+     */
+    public static final int STATE_LOADING = 0;
+
+    /**
+     * The world database is still being extracted, queries are answered from the extracted
+     * part (or the compressed asset) and fall back to the hot set.
+     */
+    public static final int STATE_EXTRACTING = 1;
+
+    /**
+     * The database is fully available.
+     */
+    public static final int STATE_READY = 2;
+
+    /**
+     * Extracting or opening the world database failed before any reader was installed, a retry
+     * is scheduled. Queries are answered from the hot set only. A failed extraction that already
+     * serves queries from a progressive reader stays in {@link #STATE_EXTRACTING}.
+     */
+    public static final int STATE_FAILED = 3;
+
+    /**
+     * True while the last attempt to set up the world database failed.
+     */
+    private volatile boolean failed = false;
+
+    /**
+     * Delay before the first retry of a failed extraction, doubled on every further failure.
+     */
+    private static final long RETRY_DELAY = 30 * 1000l;
+    private static final long MAX_RETRY_DELAY = 30 * 60 * 1000l;
+
+    /**
+     * Progress of the running world database extraction, null if none was needed.
+     */
+    private volatile ExtractionProgress extraction = null;
+
+    private Context context = null;
+
+    /**
+     * The database format, see {@link TowerReader}.
+     */
+    private int format = TowerReader.FORMAT_DOUBLE;
 
     private CellTowerDatabase() {}
 
+    /**
+     * A single country database, extracted and opened on first use.
+     */
+    private static class Shard {
+        final int mcc;
+        final String asset;
+        final File file;
+        volatile TowerReader reader;
+        boolean loading;
+
+        private Shard(int mcc, String asset, File file) {
+            this.mcc = mcc;
+            this.asset = asset;
+            this.file = file;
+        }
+    }
+
     /**
      * Initialize the DB, possibly copying the content over to another file. Note that this method
      * may require considerable amounts of time.
+     * If the app ships per country shards (e.g. towers-262.bcs.xz next to towers.bcs.xz) only
+     * shards that were already extracted are opened, all other shards get extracted on demand.
+     * A failed extraction is retried with exponential backoff on the calling thread, the journal
+     * lets every retry resume where the previous attempt stopped.
      * @param ctx The app context.
      */
     public void init(Context ctx) {
         final int dbfilesize = ctx.getResources().getInteger(R.integer.dbfile_size);
         final String dbfilename = ctx.getResources().getString(R.string.dbfile);
 
+        context = ctx;
+        format = ctx.getResources().getInteger(R.integer.dbfile_format);
         File path = ctx.getDatabasePath("towers");
         path.mkdirs();
+
+        initOverlays(new File(path, "overlays"));
+
+        if (initShards(ctx, dbfilename, path)) {
+            return;
+        }
+
         File db = new File(path + "/db.bcs");
         android.util.Log.d("SS/CellTowerDatabase/Init", "Path: " + path);
-        if (!db.exists() || db.length() < dbfilesize) {
-            android.util.Log.d("SS/CellTowerDatabase/Init", "Database needs extraction...");
-            // extract. This can take *quite* some time.
+        long delay = RETRY_DELAY;
+        while (!initWorld(ctx, dbfilename, db, dbfilesize)) {
+            // an installed progressive reader keeps answering queries during the retry
+            failed = world == null;
+            android.util.Log.d("SS/CellTowerDatabase/Init", "Retrying in " + delay + "ms");
             try {
-                InputStream in = ctx.getAssets().open(dbfilename);
-                OutputStream out = new BufferedOutputStream(new FileOutputStream(db));
-                XZInputStream xz = new XZInputStream(in);
-                byte[] buf = new byte[16 * 1024];
-                boolean canread = true;
-                while (canread) {
-                    final int read = xz.read(buf);
-                    if (read > 0) {
-                        out.write(buf, 0, read);
-                    } else {
-                        final int b = xz.read();
-                        if (b == -1) {
-                            canread = false;
-                        } else {
-                            out.write(b);
-                        }
-                    }
-                }
-                out.close();
-                xz.close();
-                in.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
             }
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+        }
+        failed = false;
+    }
+
+    /**
+     * Extract (if needed) and open the world database.
+     * @param ctx The app context.
+     * @param asset The asset name.
+     * @param db The target file.
+     * @param size The expected size of the database.
+     * @return True if the database is installed.
+     */
+    private boolean initWorld(Context ctx, String asset, File db, long size) {
+        if (!db.exists() || db.length() < size) {
+            android.util.Log.d("SS/CellTowerDatabase/Init", "Database needs extraction...");
+            // extract. This can take *quite* some time, serve queries meanwhile.
+            if (!extractProgressive(ctx, asset, db, size)) return false;
             android.util.Log.d("SS/CellTowerDatabase/Init", "Database extracted!");
         }
         android.util.Log.d("SS/CellTowerDatabase/Init", "Opening database");
         try {
-            reader = new BCSReader(
-                new Class<?>[]{Integer.class, Integer.class, Integer.class, Integer.class},
-                new Class<?>[]{Double.class, Double.class},
-                db.getCanonicalPath()
-            );
+            install(open(db));
+            ready = true;
+            return true;
         } catch (IOException e) {
             Log.e("LNLP", "init failed", e);
+            return false;
         }
     }
 
     /**
-     * Used internally for caching. HashMap compatible entity class.
+     * Replace the world database without downtime. The new file is opened in the background,
+     * queries keep running on the old database until the swap and in-flight queries finish on
+     * it, the old file is closed once the last of them is done.
+     * @param db The new database, in the current format. It must not be the file of the current
+     *           database, but it may be renamed over it.
      */
-    private static class QueryArgs {
-        Integer mcc;
-        Integer mnc;
-        int cid;
-        int lac;
+    public void replaceDatabase(final File db) {
+        shardLoader.execute(new Runnable() {
+            public void run() {
+                try {
+                    install(open(db));
+                    ready = true;
+                    android.util.Log.d("SS/CellTowerDatabase/Swap",
+                            "Database version " + getVersion() + ": " + db);
+                } catch (IOException e) {
+                    Log.e("LNLP", "replacing the database failed", e);
+                }
+            }
+        });
+    }
 
-        private QueryArgs(Integer mcc, Integer mnc, int cid, int lac) {
-            this.mcc = mcc;
-            this.mnc = mnc;
-            this.cid = cid;
-            this.lac = lac;
+    /**
+     * Retrieve the availability of the database. A null query result means "not found" only in
+     * {@link #STATE_READY}, otherwise the cell may be found later.
+     * @return One of the STATE_* constants.
+     */
+    public int getState() {
+        if (failed) return STATE_FAILED;
+        if (!ready) return STATE_LOADING;
+        final ExtractionProgress progress = extraction;
+        return progress != null && !progress.isComplete() ? STATE_EXTRACTING : STATE_READY;
+    }
+
+    /**
+     * Retrieve the progress of the world database extraction.
+     * @return 0..1, 1 if no extraction was needed.
+     */
+    public float getExtractionProgress() {
+        final ExtractionProgress progress = extraction;
+        return progress == null ? 1f : progress.fraction();
+    }
+
+    /**
+     * Retrieve the version of the world database, incremented on every replacement.
+     * @return The version, 0 if there is no world database.
+     */
+    public int getVersion() {
+        final ReaderHandle handle = world;
+        return handle == null ? 0 : handle.version;
+    }
+
+    /**
+     * Make a reader the current world database and retire the previous one.
+     * @param opened The new reader.
+     */
+    private void install(TowerReader opened) {
+        final ReaderHandle old;
+        synchronized (this) {
+            old = world;
+            world = new ReaderHandle(opened, old == null ? 1 : old.version + 1);
+        }
+        synchronized (lacTables) {
+            lacTables.clear();
         }
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
+        invalidate(true);
+        if (old != null) {
+            try {
+                old.retire();
+            } catch (IOException e) {
+                Log.e("LNLP", "closing database version " + old.version + " failed", e);
+            }
+        }
+    }
 
-            QueryArgs queryArgs = (QueryArgs) o;
+    /**
+     * Acquire the current world database handle, see {@link ReaderHandle#acquire()}.
+     * @return The acquired handle, or null if there is no world database.
+     */
+    private ReaderHandle acquireWorld() {
+        while (true) {
+            final ReaderHandle handle = world;
+            if (handle == null || handle.acquire()) return handle;
+        }
+    }
 
-            if (cid != queryArgs.cid) return false;
-            if (lac != queryArgs.lac) return false;
-            if (mcc != null ? !mcc.equals(queryArgs.mcc) : queryArgs.mcc != null) return false;
-            if (mnc != null ? !mnc.equals(queryArgs.mnc) : queryArgs.mnc != null) return false;
+    /**
+     * Drop cached query results after a data change.
+     * @param positive True to drop the cached hits too, false to drop only the misses.
+     */
+    private void invalidate(boolean positive) {
+        generation.incrementAndGet();
+        if (positive) {
+            queryCache.evictAll();
+        } else {
+            queryCache.evictMisses();
+        }
+    }
+
+    /**
+     * Open all overlay files (*.bcs) of the overlay directory. Overlays are stacked in file name
+     * order, so names should sort by age (e.g. 2014-05.bcs).
+     * @param dir The overlay directory.
+     */
+    private void initOverlays(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File file : files) {
+            if (!file.getName().endsWith(".bcs")) continue;
+            try {
+                overlays.push(open(file));
+            } catch (IOException e) {
+                Log.e("LNLP", "opening overlay " + file + " failed", e);
+            }
+        }
+        android.util.Log.d("SS/CellTowerDatabase/Init", overlays.size() + " overlays");
+    }
 
+    /**
+     * Stack a new overlay file on top of the database. The overlay is queryable immediately.
+     * @param file The overlay file, newer than all previous overlays.
+     * @throws IOException
+     */
+    public void addOverlay(File file) throws IOException {
+        overlays.push(open(file));
+        invalidate(true);
+    }
+
+    /**
+     * Register all per country shards found in the assets. Shards are named after the world db,
+     * with the MCC appended to the base name (towers.bcs.xz -&gt; towers-262.bcs.xz).
+     * @param ctx The app context.
+     * @param dbfilename The asset name of the world db.
+     * @param path The database directory.
+     * @return True if at least one shard was found.
+     */
+    private boolean initShards(Context ctx, String dbfilename, File path) {
+        final int dot = dbfilename.indexOf('.');
+        final String prefix = dbfilename.substring(0, dot) + "-";
+        final String suffix = dbfilename.substring(dot);
+        String[] assets;
+        try {
+            assets = ctx.getAssets().list("");
+        } catch (IOException e) {
+            Log.e("LNLP", "asset listing failed", e);
+            return false;
+        }
+        if (assets == null) return false;
+        ArrayList<TowerReader> opened = new ArrayList<TowerReader>();
+        synchronized (shards) {
+            for (String asset : assets) {
+                if (!asset.startsWith(prefix) || !asset.endsWith(suffix)) continue;
+                int mcc;
+                try {
+                    mcc = Integer.parseInt(
+                        asset.substring(prefix.length(), asset.length() - suffix.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                Shard shard = new Shard(mcc, asset, new File(path, "db-" + mcc + ".bcs"));
+                if (shard.file.exists()) {
+                    try {
+                        shard.reader = open(shard.file);
+                        opened.add(shard.reader);
+                    } catch (IOException e) {
+                        Log.e("LNLP", "opening shard " + mcc + " failed", e);
+                    }
+                }
+                shards.put(mcc, shard);
+            }
+            if (shards.isEmpty()) return false;
+            shardReaders = opened.toArray(new TowerReader[opened.size()]);
+        }
+        android.util.Log.d("SS/CellTowerDatabase/Init",
+                shards.size() + " shards, " + opened.size() + " extracted");
+        ready = true;
+        return true;
+    }
+
+    /**
+     * Open a tower database file.
+     * @param db The extracted database.
+     * @return A reader for the database.
+     * @throws IOException
+     */
+    private TowerReader open(File db) throws IOException {
+        return new TowerReader(format, db.getCanonicalPath());
+    }
+
+    /**
+     * Extract the world database while already serving queries from it. A progressive reader is
+     * installed as soon as the header is readable, it reads the extracted part of the temporary
+     * file and everything else from the compressed asset. The extracted file replaces it once
+     * the extraction is done.
+     * @param ctx The app context.
+     * @param asset The asset name.
+     * @param db The target file.
+     * @param size The expected size of the database.
+     * @return True if the database was extracted.
+     */
+    private boolean extractProgressive(Context ctx, String asset, File db, long size) {
+        final ProgressiveInstall installer =
+            new ProgressiveInstall(openBlocks(ctx, asset), new File(db.getPath() + ".tmp"));
+        final ExtractionProgress progress = new ExtractionProgress(size, installer);
+        extraction = progress;
+        try {
+            extract(ctx, asset, db, progress);
+            progress.complete();
             return true;
+        } catch (IOException e) {
+            Log.e("LNLP", "extraction failed", e);
+            return false;
+        } finally {
+            installer.finish();
+        }
+    }
+
+    /**
+     * Installs the progressive reader as soon as the header of the temporary file is readable.
+     * Progress may be reported by any decoder thread while it holds the completion lock of the
+     * extractor, so the listener only schedules the install on the shard loader.
+     */
+    private final class ProgressiveInstall implements ExtractionProgress.Listener, Runnable {
+
+        private final XZBlockExtractor blocks;
+        private final File tmp;
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private volatile ExtractionProgress progress;
+        private volatile long next = 0;
+        private volatile boolean installed = false;
+        /**
+         * Owns the random access stream, created by the first attempt on the shard loader.
+         */
+        private ProgressiveSource source;
+
+        private ProgressiveInstall(XZBlockExtractor blocks, File tmp) {
+            this.blocks = blocks;
+            this.tmp = tmp;
         }
-        public int hashCode() {
-            int result = mcc != null ? mcc.hashCode() : (1 << 16);
-            result = 31 * result + (mnc != null ? mnc.hashCode() : (1 << 16));
-            result = 31 * result + cid;
-            result = 31 * result + lac;
-            return result;
+
+        public void progress(ExtractionProgress p) {
+            if (installed || p.extracted() < next) return;
+            if (!scheduled.compareAndSet(false, true)) return;
+            progress = p;
+            shardLoader.execute(this);
+        }
+
+        public void run() {
+            final ExtractionProgress p = progress;
+            try {
+                if (p.isComplete()) return;
+                if (source == null) {
+                    source = new ProgressiveSource(
+                        tmp.getPath(), p, blocks == null ? null : blocks.open());
+                }
+                install(new TowerReader(format, source));
+                installed = true;
+                ready = true;
+                android.util.Log.d("SS/CellTowerDatabase/Init",
+                        "Serving queries after " + p.extracted() + " bytes");
+            } catch (IOException e) {
+                // the header is not extracted yet, retry after the next MB
+                next = p.extracted() + 1024 * 1024;
+            } finally {
+                scheduled.set(false);
+            }
+        }
+
+        /**
+         * Wait for a scheduled install and release the asset if nothing was installed. Must be
+         * called once the extraction stopped, before the extracted database is installed.
+         */
+        private void finish() {
+            try {
+                // the shard loader runs tasks in order, this waits for a pending install
+                shardLoader.submit(new Runnable() {
+                    public void run() {}
+                }).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // the task is empty
+            }
+            try {
+                if (source == null) {
+                    if (blocks != null) blocks.close();
+                } else if (!installed) {
+                    source.close();
+                }
+            } catch (IOException ignored) {}
         }
 
     }
 
     /**
-     * DB negative query cache (not found in db).
+     * Open an asset for random access and parallel decompression. This needs an uncompressed
+     * asset in the apk (aapt -0 .xz) and a xz file with several blocks, a single block would
+     * have to be decompressed from the start on every seek.
+     * @param ctx The app context.
+     * @param asset The asset name.
+     * @return The block extractor, or null if the asset has to be decompressed as a stream.
      */
-    private final LruCache<QueryArgs, Boolean> queryResultNegativeCache =
-            new LruCache<QueryArgs, Boolean>(10000);
+    private static XZBlockExtractor openBlocks(Context ctx, String asset) {
+        FileChannel channel = null;
+        try {
+            AssetFileDescriptor afd = ctx.getAssets().openFd(asset);
+            channel = afd.createInputStream().getChannel();
+            XZBlockExtractor blocks =
+                new XZBlockExtractor(channel, afd.getStartOffset(), afd.getLength());
+            if (blocks.getBlockCount() > 1) {
+                return blocks;
+            }
+            android.util.Log.w("SS/CellTowerDatabase/Init", asset + " has a single xz block, " +
+                    "extracting sequentially without random access");
+        } catch (IOException e) {
+            // compressed asset, openFd is not supported
+            android.util.Log.w("SS/CellTowerDatabase/Init", asset + " is compressed in the apk " +
+                    "(aapt -0 .xz missing), extracting sequentially without random access");
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+        return null;
+    }
+
+    /**
+     * Extract a xz compressed asset. The data is written to a temporary file that is renamed on
+     * success, a killed extraction will thus never leave a truncated database behind.
+     * Multi block assets are decompressed in parallel, one decoder per core, and resume from the
+     * last checkpointed block if a previous extraction was killed.
+     * @param ctx The app context.
+     * @param asset The asset name.
+     * @param target The target file.
+     * @param progress Progress to advance after every written chunk, or null.
+     * @throws IOException
+     */
+    private static void extract(
+        Context ctx, String asset, File target, ExtractionProgress progress
+    ) throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        XZBlockExtractor blocks = openBlocks(ctx, asset);
+        if (blocks != null) {
+            try {
+                blocks.extract(tmp, Runtime.getRuntime().availableProcessors(), progress);
+            } finally {
+                blocks.close();
+            }
+            if (!tmp.renameTo(target)) {
+                throw new IOException("Could not rename " + tmp + " to " + target);
+            }
+            return;
+        }
+        InputStream in = ctx.getAssets().open(asset);
+        // unbuffered, everything reported as progress must be readable from the file
+        OutputStream out = new FileOutputStream(tmp);
+        XZInputStream xz = new XZInputStream(in);
+        try {
+            byte[] buf = new byte[64 * 1024];
+            while (true) {
+                int read = xz.read(buf);
+                if (read == -1) break;
+                // fill the buffer, small writes would make the progress reporting expensive
+                while (read < buf.length) {
+                    final int more = xz.read(buf, read, buf.length - read);
+                    if (more == -1) break;
+                    read += more;
+                }
+                out.write(buf, 0, read);
+                if (progress != null) progress.advance(read);
+            }
+        } finally {
+            out.close();
+            xz.close();
+            in.close();
+        }
+        if (!tmp.renameTo(target)) {
+            throw new IOException("Could not rename " + tmp + " to " + target);
+        }
+    }
+
     /**
-     * DB positive query cache (found in the db).
+     * Load all cells of a location area into memory in the background, e.g. after a cell change.
+     * Neighbour and handover lookups inside the area are then answered without disk access.
+     * Only the {@link #MAX_LAC_TABLES} most recently used areas are kept.
+     * @param lac The location area code of the serving GSM cell.
      */
-    private final LruCache<QueryArgs, List<CellInfo>> queryResultCache =
-            new LruCache<QueryArgs, List<CellInfo>>(10000);
+    public void preload(int lac) {
+        preload(TowerReader.RADIO_GSM, lac);
+    }
+
+    /**
+     * Load all cells of a location (or tracking) area, see {@link #preload(int)}.
+     * @param radio The radio type of the serving cell, see TowerReader.RADIO_*.
+     * @param lac The area code of the serving cell.
+     */
+    public void preload(final int radio, final int lac) {
+        if (lac == -1 || lac == Integer.MAX_VALUE) return;
+        final int version = getVersion();
+        if (!ready || version == 0) return;
+        final Long area = areaKey(radio, lac);
+        synchronized (lacTables) {
+            final LacTable table = lacTables.get(area);
+            if (table != null && table.version == version) return;
+            if (!lacLoading.add(area)) return;
+        }
+        shardLoader.execute(new Runnable() {
+            public void run() {
+                final ReaderHandle handle = acquireWorld();
+                try {
+                    if (handle == null) return;
+                    final LacTable table =
+                        LacTable.load(handle.reader, handle.version, radio, lac);
+                    synchronized (lacTables) {
+                        if (handle == world) lacTables.put(area, table);
+                    }
+                    android.util.Log.d("SS/CellTowerDatabase/Preload",
+                            "LAC " + lac + ": " + table.size() + " cells");
+                } catch (NotReadyException e) {
+                    // still extracting, the next cell change retries
+                } catch (IOException e) {
+                    Log.e("LNLP", "preloading LAC " + lac + " failed", e);
+                } finally {
+                    synchronized (lacTables) {
+                        lacLoading.remove(area);
+                    }
+                    if (handle != null) {
+                        try {
+                            handle.release();
+                        } catch (IOException e) {
+                            Log.e("LNLP", "releasing the database failed", e);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private static Long areaKey(int radio, int lac) {
+        return ((long) radio << 32) | (lac & 0xffffffffl);
+    }
+
+    /**
+     * MCC of the registered network, the shard hint for cells without a known MCC. Null if
+     * unknown.
+     */
+    private volatile Integer networkCountry = null;
+
+    /**
+     * Set the country of the registered network. GsmCellLocation and NeighboringCellInfo
+     * observations carry no MCC, their queries wait for the shard of this country instead of
+     * caching a miss. The shard is extracted in the background.
+     * @param mcc The MCC of the network operator, values outside of 0..999 clear the hint.
+     */
+    public void setNetworkCountry(int mcc) {
+        if (mcc < 0 || mcc > 999) {
+            networkCountry = null;
+            return;
+        }
+        networkCountry = mcc;
+        shardReady(mcc);
+    }
+
+    /**
+     * Hint the countries that are currently visible, extracting their shards in the background.
+     * @param mccs The MCCs of all visible cells.
+     */
+    public void prepare(int[] mccs) {
+        if (mccs == null) return;
+        for (int mcc : mccs) {
+            shardReady(mcc);
+        }
+    }
+
+    /**
+     * Check if the data for a given country can be queried, scheduling the shard extraction if
+     * needed.
+     * @param mcc The country code.
+     * @return True if queries for this MCC can be answered right now.
+     */
+    private boolean shardReady(int mcc) {
+        final Shard shard;
+        synchronized (shards) {
+            if (shards.isEmpty()) return true;
+            shard = shards.get(mcc);
+            if (shard == null) return true; // no data for this country at all
+            if (shard.reader != null) return true;
+            if (shard.loading || context == null) return false;
+            shard.loading = true;
+        }
+        shardLoader.execute(new Runnable() {
+            public void run() {
+                loadShard(shard);
+            }
+        });
+        return false;
+    }
+
+    /**
+     * Extract (if needed) and open a shard. Runs on the shard loader thread.
+     * @param shard The shard to load.
+     */
+    private void loadShard(Shard shard) {
+        TowerReader opened = null;
+        try {
+            if (!shard.file.exists()) {
+                android.util.Log.d("SS/CellTowerDatabase/Shard", "Extracting " + shard.asset);
+                extract(context, shard.asset, shard.file, null);
+            }
+            opened = open(shard.file);
+        } catch (IOException e) {
+            Log.e("LNLP", "loading shard " + shard.mcc + " failed", e);
+        }
+        synchronized (shards) {
+            shard.loading = false;
+            if (opened == null) return;
+            shard.reader = opened;
+            TowerReader[] readers = Arrays.copyOf(shardReaders, shardReaders.length + 1);
+            readers[readers.length - 1] = opened;
+            shardReaders = readers;
+        }
+        // cells of this country may have been looked up without MCC before
+        invalidate(false);
+        android.util.Log.d("SS/CellTowerDatabase/Shard", "Opened shard " + shard.mcc);
+    }
+
+    /**
+     * Retrieve the readers that may contain a cell of the given country.
+     * @param mcc The MCC, or null for all countries.
+     * @return The readers to query.
+     */
+    private TowerReader[] readersFor(Integer mcc) {
+        if (mcc == null) return shardReaders;
+        final Shard shard;
+        synchronized (shards) {
+            shard = shards.get(mcc);
+        }
+        if (shard == null || shard.reader == null) return new TowerReader[0];
+        return new TowerReader[]{shard.reader};
+    }
+
+    /**
+     * Marker of cached misses (not found in db).
+     */
+    private static final List<CellInfo> NOT_FOUND =
+            Collections.unmodifiableList(new ArrayList<CellInfo>(0));
+
+    /**
+     * Time to live of cached hits, the db only changes through explicit updates.
+     */
+    private static final long HIT_TTL = 24 * 60 * 60 * 1000l;
+
+    /**
+     * Time to live of cached misses, shorter as shards and overlays may add cells.
+     */
+    private static final long MISS_TTL = 60 * 60 * 1000l;
+
+    /**
+     * DB query cache, holding the found cells or {@link #NOT_FOUND}.
+     */
+    private final CellCache<List<CellInfo>> queryCache =
+            new CellCache<List<CellInfo>>(20000, NOT_FOUND);
+
+    /**
+     * Number of query results (cells of one lac/cid) persisted in the hot set.
+     */
+    private static final int HOT_SET_SIZE = 2000;
+
+    /**
+     * Minimum time between two hot set saves.
+     */
+    private static final long HOT_SET_INTERVAL = 15 * 60 * 1000l;
+
+    /**
+     * The most frequently resolved cells of the last run, see {@link #loadHotSet(Context)}.
+     */
+    private volatile TowerReader hotSet = null;
+    private volatile File hotSetFile = null;
+    private volatile long hotSetSaved = System.currentTimeMillis();
+    private final AtomicBoolean hotSetSaving = new AtomicBoolean(false);
+
+    /**
+     * Retrieve the query cache statistics.
+     * @return The cache statistics.
+     */
+    public CellCache.Stats getCacheStats() {
+        return queryCache.getStats();
+    }
 
     public List<CellInfo> query(final int cid, final int lac) {
         return query(null, null, cid, lac);
     }
 
     /**
-     * Perform a (cached) DB query for a given cell tower. Note that MCC and MNC can be null.
+     * Perform a (cached) DB query for a given GSM/UMTS cell tower. Note that MCC and MNC can be
+     * null.
      * @param mcc
      * @param mnc
      * @param cid
@@ -149,144 +833,341 @@ public class CellTowerDatabase {
      * @return
      */
     public List<CellInfo> query(final Integer mcc, final Integer mnc, final int cid, final int lac) {
-        if (this.reader == null) return null;
-
         if (cid == NeighboringCellInfo.UNKNOWN_CID || cid == Integer.MAX_VALUE) return null;
+        return query(TowerReader.RADIO_GSM, mcc, mnc, cid & 0xffffffffl, lac);
+    }
 
-        if (mcc != null && mcc == Integer.MAX_VALUE) return query(null, mnc, cid, lac);
-        if (mnc != null && mnc == Integer.MAX_VALUE) return query(mcc, null, cid, lac);
+    /**
+     * Perform a (cached) DB query for a given cell tower of any radio type. Note that MCC and
+     * MNC can be null, values outside of 0..999 are treated as unknown.
+     * @param radio The radio type, see TowerReader.RADIO_*.
+     * @param mcc
+     * @param mnc
+     * @param cid The unsigned cell id (28 bit ECI for LTE, 36 bit NCI for NR).
+     * @param lac The location area code, the tracking area code for LTE and NR.
+     * @return
+     */
+    public List<CellInfo> query(
+        final int radio, final Integer mcc, final Integer mnc, final long cid, final int lac
+    ) {
+        if (!validCell(radio, cid, lac)) return null;
 
-        QueryArgs args = new QueryArgs(mcc, mnc, cid, lac);
-        Boolean negative = queryResultNegativeCache.get(args);
-        if (negative != null && negative.booleanValue()) return null;
+        if (mcc != null && (mcc < 0 || mcc > 999)) return query(radio, null, mnc, cid, lac);
+        if (mnc != null && (mnc < 0 || mnc > 999)) return query(radio, mcc, null, cid, lac);
 
-        List<CellInfo> cached = queryResultCache.get(args);
-        if (cached != null) return cached;
+        if (!ready) return queryHotSet(radio, mcc, mnc, cid, lac);
 
-        List<CellInfo> result = _query(mcc, mnc, cid, lac);
+        // the country shard is still being extracted, don't cache the miss
+        if (mcc != null && !shardReady(mcc)) return queryHotSet(radio, mcc, mnc, cid, lac);
+        final Integer hint = networkCountry;
+        if (mcc == null && hint != null && !shardReady(hint)) {
+            return queryHotSet(radio, mcc, mnc, cid, lac);
+        }
+
+        final int gen = generation.get();
+        final long keyHi = CellCache.hi(radio, mcc, mnc);
+        final long keyLo = CellCache.lo(radio, lac, cid);
+        List<CellInfo> cached = queryCache.get(keyHi, keyLo);
+        if (cached == NOT_FOUND) return null;
+        if (cached != null) {
+            maybeSaveHotSet();
+            return cached;
+        }
+
+        List<CellInfo> result;
+        try {
+            result = _query(radio, mcc, mnc, cid, lac);
+        } catch (NotReadyException e) {
+            // that part of the database is still being extracted, don't cache the miss
+            return queryHotSet(radio, mcc, mnc, cid, lac);
+        }
+        // the data changed while we were querying, don't cache a stale result
+        final boolean current = gen == generation.get();
 
         if (result == null) {
-            queryResultNegativeCache.put(args, true);
+            if (current) queryCache.put(keyHi, keyLo, NOT_FOUND, MISS_TTL);
             return null;
         }
 
         result = Collections.unmodifiableList(result);
 
-        queryResultCache.put(args, result);
+        if (current) queryCache.put(keyHi, keyLo, result, HIT_TTL);
+        maybeSaveHotSet();
         return result;
     }
 
     /**
-     * Internal db query to retrieve all cell tower candidates for a given cid/lac.
+     * Check the identity of a cell against the limits of its radio type.
+     * @param radio The radio type.
+     * @param cid The unsigned cell id.
+     * @param lac The area code.
+     * @return True if the cell can be queried.
+     */
+    private static boolean validCell(int radio, long cid, int lac) {
+        switch (radio) {
+            case TowerReader.RADIO_GSM:
+                return cid >= 0 && cid < 0xffffffffl && cid != Integer.MAX_VALUE;
+            case TowerReader.RADIO_LTE:
+                return cid >= 0 && cid < (1l << 28) && lac >= 0 && lac <= 0xffff;
+            case TowerReader.RADIO_NR:
+                return cid >= 0 && cid < (1l << 36) && lac >= 0 && lac <= 0xffffff;
+        }
+        return false;
+    }
+
+    /**
+     * Answer a query from the hot set, used while the database is not ready. Results are not
+     * cached, the database may know more cells.
+     * @param radio
      * @param mcc
      * @param mnc
      * @param cid
      * @param lac
-     * @return
+     * @return The cells found in the hot set, or null.
      */
-    private List<CellInfo> _query(Integer mcc, Integer mnc, int cid, int lac) {
-        if (this.reader == null) return null;
+    private List<CellInfo> queryHotSet(int radio, Integer mcc, Integer mnc, long cid, int lac) {
+        final TowerReader hot = hotSet;
+        if (hot == null) return null;
+        try {
+            return toCellInfos(radio, hot.find(radio, lac, cid, mcc, mnc));
+        } catch (IOException e) {
+            Log.e("LNLP", "hot set query failed", e);
+            return null;
+        }
+    }
 
-        // we need at least CID/LAC
-        if (cid == NeighboringCellInfo.UNKNOWN_CID) return null;
+    /**
+     * Open the hot set of the last run, so queries can be answered before the database is
+     * ready. Call this before {@link #init(Context)}, the file is small enough to open on any
+     * thread.
+     * @param ctx The app context.
+     */
+    public void loadHotSet(Context ctx) {
+        File path = ctx.getDatabasePath("towers");
+        path.mkdirs();
+        hotSetFile = new File(path, "hot.bcs");
+        if (!hotSetFile.exists()) return;
+        try {
+            hotSet = new TowerReader(TowerReader.FORMAT_RADIO, hotSetFile.getPath());
+            android.util.Log.d("SS/CellTowerDatabase/HotSet",
+                    "Opened hot set, " + hotSetFile.length() + " bytes");
+        } catch (IOException e) {
+            Log.e("LNLP", "opening the hot set failed", e);
+        }
+    }
 
-        android.util.Log.d("LNLP/Query", "(" + mcc + "," + mnc + "," + cid + "," + lac + ")");
+    /**
+     * Schedule a hot set save if the last one is older than {@link #HOT_SET_INTERVAL}.
+     */
+    private void maybeSaveHotSet() {
+        if (hotSetFile == null) return;
+        final long now = System.currentTimeMillis();
+        if (now - hotSetSaved < HOT_SET_INTERVAL) return;
+        if (!hotSetSaving.compareAndSet(false, true)) return;
+        hotSetSaved = now;
+        shardLoader.execute(new Runnable() {
+            public void run() {
+                try {
+                    saveHotSet();
+                } catch (IOException e) {
+                    Log.e("LNLP", "saving the hot set failed", e);
+                } finally {
+                    hotSetSaving.set(false);
+                }
+            }
+        });
+    }
 
-        List<CellInfo> cil = _queryDirect(mcc, mnc, cid, lac);
-        if (cil == null || cil.size() == 0) {
-            if (cid > 0xffff) {
-                _queryDirect(mcc, mnc, cid & 0xffff, lac);
+    /**
+     * Write the most frequently resolved cells to the hot set file. The file is written to a
+     * temporary file first and renamed, an open hot set reader keeps reading the old file.
+     * @throws IOException
+     */
+    private void saveHotSet() throws IOException {
+        ArrayList<CellInfo> cells = new ArrayList<CellInfo>();
+        HashSet<Long> seen = new HashSet<Long>();
+        for (List<CellInfo> cil : queryCache.hottest(HOT_SET_SIZE)) {
+            for (CellInfo ci : cil) {
+                cells.add(ci);
+                seen.add(OperatorDictionary.pack(ci.MCC, ci.MNC));
             }
         }
-        if (cil != null && cil.size() > 0) {
-            return cil;
+        if (cells.isEmpty()) return;
+        // BCS keys compare as unsigned bytes, operator codes follow (mcc, mnc) order
+        Collections.sort(cells, new Comparator<CellInfo>() {
+            public int compare(CellInfo l, CellInfo r) {
+                int cmp = l.radio - r.radio;
+                if (cmp == 0) cmp = compareUnsigned(l.LAC, r.LAC);
+                if (cmp == 0) cmp = compareUnsigned(keyCid(l), keyCid(r));
+                if (cmp == 0) cmp = compareUnsigned(l.MCC, r.MCC);
+                if (cmp == 0) cmp = compareUnsigned(l.MNC, r.MNC);
+                return cmp;
+            }
+        });
+        long[] operators = new long[seen.size()];
+        int i = 0;
+        for (Long op : seen) {
+            operators[i++] = op;
         }
-
-        if (mcc != null && mnc != null) {
-            return query(mcc, null, cid, lac);
+        File tmp = new File(hotSetFile.getPath() + ".tmp");
+        TowerWriter out = new TowerWriter(TowerReader.FORMAT_RADIO, tmp.getPath(),
+                new OperatorDictionary(operators));
+        CellInfo last = null;
+        for (CellInfo ci : cells) {
+            if (last != null && last.radio == ci.radio && last.LAC == ci.LAC &&
+                last.CID == ci.CID && last.MCC == ci.MCC && last.MNC == ci.MNC) continue;
+            out.append(ci.radio, ci.LAC, keyCid(ci), ci.MCC, ci.MNC, ci.lng, ci.lat);
+            last = ci;
         }
-
-        if (mcc != null || mnc != null) {
-            return query(null,null,cid,lac);
+        out.close();
+        if (!tmp.renameTo(hotSetFile)) {
+            throw new IOException("Could not rename " + tmp + " to " + hotSetFile);
         }
+        android.util.Log.d("SS/CellTowerDatabase/HotSet",
+                "Saved " + out.getEntryCount() + " cells");
+    }
 
-        return null;
+    /**
+     * The unsigned cid of a cell as stored in the database.
+     * @param ci The cell.
+     * @return The cid, GSM cids are not sign extended.
+     */
+    private static long keyCid(CellInfo ci) {
+        return ci.radio == TowerReader.RADIO_GSM ? ci.CID & 0xffffffffl : ci.CID;
     }
 
-    private List<CellInfo> _queryDirect(Integer mcc, Integer mnc, int cid, int lac) {
-        if (mcc != null && mnc != null) {
-            // try direct lookup
-            Object[] values;
-            try {
-                values = reader.get(lac, cid, mcc, mnc);
-            } catch (IOException e) {
-                Log.e("LNLP", "queryDirect failed", e);
-                return null; // We're broken
-            }
-            if (values != null) {
-                CellInfo ci = new CellInfo();
-                ci.CID = cid;
-                ci.LAC = lac;
-                ci.MCC = mcc;
-                ci.MNC = mnc;
-                ci.lng = (Double) values[0];
-                ci.lat = (Double) values[1];
-                return Arrays.asList(new CellInfo[]{ci});
+    private static int compareUnsigned(int l, int r) {
+        l ^= Integer.MIN_VALUE;
+        r ^= Integer.MIN_VALUE;
+        return l < r ? -1 : (l == r ? 0 : 1);
+    }
+
+    private static int compareUnsigned(long l, long r) {
+        l ^= Long.MIN_VALUE;
+        r ^= Long.MIN_VALUE;
+        return l < r ? -1 : (l == r ? 0 : 1);
+    }
+
+    /**
+     * Internal db query to retrieve all cell tower candidates for a given cid/lac.
+     * The key order starts with (radio, lac, cid), so a single indexed read returns every
+     * candidate of the cell. They are ranked in memory by {@link #matchLevel(int, int, int,
+     * int)}, only the best level is returned. A 28 bit UMTS cid may be stored as
+     * 16 bit GSM cid, that form is read only if the full cid has no perfect match and wins only
+     * on a better level.
+     * @param radio
+     * @param mcc
+     * @param mnc
+     * @param cid
+     * @param lac
+     * @return
+     * @throws NotReadyException If the cell is in a part of the database that is not extracted yet.
+     */
+    private List<CellInfo> _query(int radio, Integer mcc, Integer mnc, long cid, int lac)
+        throws NotReadyException
+    {
+        if (!ready) return null;
+
+        android.util.Log.d("LNLP/Query",
+                "(" + radio + "," + mcc + "," + mnc + "," + cid + "," + lac + ")");
+
+        final int qMcc = mcc == null ? -1 : mcc.intValue();
+        final int qMnc = mnc == null ? -1 : mnc.intValue();
+        final int perfect = matchLevel(qMcc, qMnc, qMcc, qMnc);
+        final int[] level = new int[1];
+        List<CellInfo> cil = best(_queryDirect(radio, mcc, cid, lac), qMcc, qMnc, level);
+        if (level[0] < perfect && radio == TowerReader.RADIO_GSM && cid > 0xffff) {
+            final int[] shortLevel = new int[1];
+            List<CellInfo> shortCil =
+                best(_queryDirect(radio, mcc, cid & 0xffff, lac), qMcc, qMnc, shortLevel);
+            if (shortLevel[0] > level[0]) {
+                cil = shortCil;
             }
-            return null;
         }
-        if (mnc != null && mcc == null) {
-            // this is special, we can only search for cid + lac and must filter afterwards
-            BCSReader.BlockEntry[] be;
-            try {
-                be = reader.getAll(lac, cid);
-            } catch (IOException e) {
-                Log.e("LNLP", "queryDirect failed", e);
-                return null; // br0ke
-            }
-            if (be != null && be.length > 0) {
-                ArrayList<CellInfo> cil = new ArrayList<CellInfo>();
-                for (BCSReader.BlockEntry e : be) {
-                    if (((Integer) e.key[3]).equals(mnc)) {
-                        CellInfo ci = new CellInfo();
-                        ci.CID = (Integer) e.key[1];
-                        ci.LAC = (Integer) e.key[0];
-                        ci.MCC = (Integer) e.key[2];
-                        ci.MNC = (Integer) e.key[3];
-                        ci.lng = (Double) e.value[0];
-                        ci.lat = (Double) e.value[1];
-                        cil.add(ci);
-                    }
-                }
-                if (!cil.isEmpty()) {
-                    return cil;
-                }
+        return cil;
+    }
+
+    /**
+     * Rank a cell candidate by the match with the query. A MCC mismatch is never better than
+     * no match at all, the MNC only counts for a matching (or unknown) MCC.
+     * @param cellMcc The MCC of the candidate.
+     * @param cellMnc The MNC of the candidate.
+     * @param mcc The queried MCC or -1.
+     * @param mnc The queried MNC or -1.
+     * @return The match level, 0 for no match.
+     */
+    private static int matchLevel(int cellMcc, int cellMnc, int mcc, int mnc) {
+        final boolean mncMatch = mnc >= 0 && mnc == cellMnc;
+        if (mcc < 0) return mncMatch ? 1 : 0;
+        if (mcc != cellMcc) return 0;
+        return mncMatch ? 2 : 1;
+    }
+
+    /**
+     * Select the candidates with the best match level.
+     * @param candidates All candidates, or null.
+     * @param mcc The queried MCC or -1.
+     * @param mnc The queried MNC or -1.
+     * @param level Receives the best match level, -1 if there are no candidates.
+     * @return The best candidates, or null if there are none.
+     */
+    private static List<CellInfo> best(
+        List<CellInfo> candidates, int mcc, int mnc, int[] level
+    ) {
+        level[0] = -1;
+        if (candidates == null) return null;
+        ArrayList<CellInfo> best = new ArrayList<CellInfo>(candidates.size());
+        for (CellInfo ci : candidates) {
+            final int l = matchLevel(ci.MCC, ci.MNC, mcc, mnc);
+            if (l < level[0]) continue;
+            if (l > level[0]) {
+                best.clear();
+                level[0] = l;
             }
-            return null;
+            best.add(ci);
         }
+        return best;
+    }
+
+    /**
+     * Retrieve all candidates of a cell.
+     * @param radio The radio type.
+     * @param mcc The MCC hint, selects the shard to read first.
+     * @param cid
+     * @param lac
+     * @return The candidates, or null.
+     * @throws NotReadyException If the cell is in a part of the database that is not extracted yet.
+     */
+    private List<CellInfo> _queryDirect(int radio, Integer mcc, long cid, int lac)
+        throws NotReadyException
+    {
         BCSReader.BlockEntry[] be;
-        if (mcc != null) {
-            try {
-                be = reader.getAll(lac, cid, mcc);
-            } catch (IOException e) {
-                Log.e("LNLP", "queryDirect failed", e);
-                return null; // br0ke
-            }
-        } else {
-            try {
-                be = reader.getAll(lac, cid);
-            } catch (IOException e) {
-                Log.e("LNLP", "queryDirect failed", e);
-                return null; // br0ke
-            }
+        try {
+            be = lookup(radio, mcc, cid, lac);
+        } catch (NotReadyException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.e("LNLP", "queryDirect failed", e);
+            return null; // br0ke
         }
+        return toCellInfos(radio, be);
+    }
+
+    /**
+     * Convert database entries to cell infos.
+     * @param radio The radio type of the entries.
+     * @param be Entries with a (lac, cid, mcc, mnc) key and (lng, lat) values, or null.
+     * @return The cells, or null if there are none.
+     */
+    private static List<CellInfo> toCellInfos(int radio, BCSReader.BlockEntry[] be) {
         if (be == null || be.length == 0) {
             return null;
         }
         ArrayList<CellInfo> cil = new ArrayList<CellInfo>();
         for (BCSReader.BlockEntry e : be) {
             CellInfo ci = new CellInfo();
-            ci.CID = (Integer) e.key[1];
+            ci.radio = radio;
+            ci.CID = ((Number) e.key[1]).longValue();
             ci.LAC = (Integer) e.key[0];
             ci.MCC = (Integer) e.key[2];
             ci.MNC = (Integer) e.key[3];
@@ -294,7 +1175,87 @@ public class CellTowerDatabase {
             ci.lat = (Double) e.value[1];
             cil.add(ci);
         }
+        if (cil.isEmpty()) {
+            return null;
+        }
         return cil;
     }
 
+    /**
+     * Retrieve the raw entries for a cell from all relevant readers, merged with the overlays.
+     * A preloaded location area is answered from memory. In sharded mode the shard of the MCC is
+     * read first, all other shards only if it has no candidate of that country.
+     * @param radio The radio type.
+     * @param mcc The MCC hint or null.
+     * @param cid
+     * @param lac
+     * @return All entries of (radio, lac, cid) or null.
+     * @throws IOException
+     */
+    private BCSReader.BlockEntry[] lookup(int radio, Integer mcc, long cid, int lac)
+        throws IOException
+    {
+        final ReaderHandle handle = acquireWorld();
+        if (handle == null) {
+            BCSReader.BlockEntry[] be = lookup(readersFor(mcc), radio, cid, lac);
+            if (mcc != null && !hasCountry(be, mcc)) {
+                be = lookup(readersFor(null), radio, cid, lac);
+            }
+            return be;
+        }
+        try {
+            final LacTable table;
+            synchronized (lacTables) {
+                table = lacTables.get(areaKey(radio, lac));
+            }
+            if (table != null && table.version == handle.version) {
+                return overlays.getAll(table.find(cid), radio, lac, cid, null, null);
+            }
+            return lookup(new TowerReader[]{handle.reader}, radio, cid, lac);
+        } finally {
+            handle.release();
+        }
+    }
+
+    /**
+     * Check for an entry of a country.
+     * @param be The entries or null.
+     * @param mcc The MCC.
+     * @return True if an entry has the MCC.
+     */
+    private static boolean hasCountry(BCSReader.BlockEntry[] be, int mcc) {
+        if (be == null) return false;
+        for (BCSReader.BlockEntry e : be) {
+            if (((Integer) e.key[2]).intValue() == mcc) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Retrieve the raw entries for a cell from the given readers, merged with the overlays.
+     * @param readers The readers to query.
+     * @param radio The radio type.
+     * @param cid
+     * @param lac
+     * @return All entries of (radio, lac, cid) or null.
+     * @throws IOException
+     */
+    private BCSReader.BlockEntry[] lookup(TowerReader[] readers, int radio, long cid, int lac)
+        throws IOException
+    {
+        BCSReader.BlockEntry[] result = null;
+        for (TowerReader reader : readers) {
+            BCSReader.BlockEntry[] be = reader.find(radio, lac, cid, null, null);
+            if (be == null || be.length == 0) continue;
+            if (result == null) {
+                result = be;
+            } else {
+                BCSReader.BlockEntry[] r = Arrays.copyOf(result, result.length + be.length);
+                System.arraycopy(be, 0, r, result.length, be.length);
+                result = r;
+            }
+        }
+        return overlays.getAll(result, radio, lac, cid, null, null);
+    }
+
 }
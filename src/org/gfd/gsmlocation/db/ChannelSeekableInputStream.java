@@ -0,0 +1,67 @@
+package org.gfd.gsmlocation.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.tukaani.xz.SeekableInputStream;
+
+/**
+ * Seekable input stream over a region of a file channel, e.g. an
+ * uncompressed asset inside the apk. Reads are positional, the channel
+ * position is never changed.
+ */
+public class ChannelSeekableInputStream extends SeekableInputStream {
+
+    private final FileChannel channel;
+    private final long offset;
+    private final long length;
+    private long pos = 0;
+
+    /**
+     * Create a stream over a channel region.
+     * @param channel The channel.
+     * @param offset The start of the region.
+     * @param length The length of the region.
+     */
+    public ChannelSeekableInputStream(FileChannel channel, long offset, long length) {
+        this.channel = channel;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+    }
+
+    public int read(byte[] buf, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (pos >= length) return -1;
+        len = (int) Math.min(len, length - pos);
+        final int read = channel.read(ByteBuffer.wrap(buf, off, len), offset + pos);
+        if (read < 0) return -1;
+        pos += read;
+        return read;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public long position() {
+        return pos;
+    }
+
+    public void seek(long pos) throws IOException {
+        if (pos < 0) {
+            throw new IOException("Negative seek position: " + pos);
+        }
+        this.pos = pos;
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -0,0 +1,79 @@
+package org.gfd.gsmlocation.db;
+
+/**
+ * Progress of a running database extraction. Writers must be serialized, a
+ * parallel extraction advances the progress from its decoder threads while
+ * holding its completion lock. Readers may poll from any thread. Everything
+ * below {@link #extracted()} has been written to the target file and can be
+ * read.
+ */
+public class ExtractionProgress {
+
+    /**
+     * Notified by the advancing thread after every written chunk, with the
+     * writer lock held. Implementations must not block.
+     */
+    public interface Listener {
+        void progress(ExtractionProgress progress);
+    }
+
+    private final long total;
+    private final Listener listener;
+    private volatile long extracted = 0;
+    private volatile boolean complete = false;
+
+    /**
+     * Create a progress tracker.
+     * @param total The expected size of the extracted file.
+     * @param listener The listener or null.
+     */
+    public ExtractionProgress(long total, Listener listener) {
+        this.total = total;
+        this.listener = listener;
+    }
+
+    /**
+     * Account bytes that were written to the target file.
+     * @param bytes The number of bytes.
+     */
+    public void advance(long bytes) {
+        extracted += bytes;
+        if (listener != null) {
+            listener.progress(this);
+        }
+    }
+
+    /**
+     * Mark the extraction as done.
+     */
+    public void complete() {
+        complete = true;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Number of bytes that can be read from the target file.
+     * @return The extracted byte count.
+     */
+    public long extracted() {
+        return extracted;
+    }
+
+    public long total() {
+        return total;
+    }
+
+    /**
+     * The extracted fraction.
+     * @return 0..1, 1 once the extraction is complete.
+     */
+    public float fraction() {
+        if (complete) return 1f;
+        if (total <= 0) return 0f;
+        return Math.min(1f, (float) extracted / total);
+    }
+
+}
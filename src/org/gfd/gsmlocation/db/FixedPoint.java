@@ -0,0 +1,39 @@
+package org.gfd.gsmlocation.db;
+
+/**
+ * Column type for coordinates stored as 32 bit fixed point values with a
+ * resolution of 1e-7 degree (~1cm), decoded to Double. Cell tower positions
+ * are never that precise, but the full longitude range still fits an int.
+ * NaN (used for tombstones) is stored as Integer.MIN_VALUE.
+ */
+public final class FixedPoint {
+
+    public final static double SCALE = 1e7;
+
+    private FixedPoint() {}
+
+    /**
+     * Encode a coordinate.
+     * @param value The coordinate in degree.
+     * @return The fixed point representation.
+     */
+    public static int encode(double value) {
+        if (Double.isNaN(value)) {
+            return Integer.MIN_VALUE;
+        }
+        return (int) Math.round(value * SCALE);
+    }
+
+    /**
+     * Decode a coordinate.
+     * @param value The fixed point representation.
+     * @return The coordinate in degree.
+     */
+    public static double decode(int value) {
+        if (value == Integer.MIN_VALUE) {
+            return Double.NaN;
+        }
+        return value / SCALE;
+    }
+
+}
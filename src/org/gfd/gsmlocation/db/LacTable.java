@@ -0,0 +1,128 @@
+package org.gfd.gsmlocation.db;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * All cells of one location area, held in memory as sorted primitive
+ * columns. Neighbour and handover lookups inside the area are a binary
+ * search on the cid column, without any disk access.
+ */
+public final class LacTable {
+
+    /**
+     * The radio type, see TowerReader.RADIO_*.
+     */
+    public final int radio;
+
+    public final int lac;
+
+    /**
+     * The version of the database the table was loaded from.
+     */
+    public final int version;
+
+    private int size = 0;
+    private long[] cid;
+    private int[] mcc;
+    private int[] mnc;
+    private double[] lng;
+    private double[] lat;
+
+    private LacTable(int radio, int lac, int version, int capacity) {
+        this.radio = radio;
+        this.lac = lac;
+        this.version = version;
+        cid = new long[capacity];
+        mcc = new int[capacity];
+        mnc = new int[capacity];
+        lng = new double[capacity];
+        lat = new double[capacity];
+    }
+
+    /**
+     * Load a location area.
+     * @param reader The database.
+     * @param version The database version, see {@link ReaderHandle#version}.
+     * @param radio The radio type.
+     * @param lac The location area code.
+     * @return The table, possibly empty.
+     * @throws IOException
+     */
+    public static LacTable load(TowerReader reader, int version, int radio, int lac)
+        throws IOException
+    {
+        final LacTable table = new LacTable(radio, lac, version, 64);
+        reader.scan(radio, lac, new TowerReader.Batch(1024), new TowerReader.BatchConsumer() {
+            public void accept(TowerReader.Batch batch) {
+                table.append(batch);
+            }
+        });
+        table.trim();
+        return table;
+    }
+
+    /**
+     * Number of cells in the area.
+     * @return The cell count.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Retrieve all entries of a cell, like
+     * {@link TowerReader#find(int, int, long, Integer, Integer)} without mcc and mnc.
+     * @param cellId The unsigned cell id.
+     * @return Entries with a (lac, cid, mcc, mnc) key and a (lng, lat) value, or null.
+     */
+    public BCSReader.BlockEntry[] find(long cellId) {
+        // rows are in key order, the cid compares unsigned
+        int low = 0;
+        int high = size;
+        final long key = cellId ^ Long.MIN_VALUE;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if ((cid[mid] ^ Long.MIN_VALUE) < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        int end = low;
+        while (end < size && cid[end] == cellId) end++;
+        if (end == low) {
+            return null;
+        }
+        BCSReader.BlockEntry[] result = new BCSReader.BlockEntry[end - low];
+        for (int i = low; i < end; i++) {
+            result[i - low] = TowerReader.entry(radio, lac, cid[i], mcc[i], mnc[i], lng[i], lat[i]);
+        }
+        return result;
+    }
+
+    private void append(TowerReader.Batch batch) {
+        if (size + batch.size > cid.length) {
+            resize(Math.max(cid.length * 2, size + batch.size));
+        }
+        System.arraycopy(batch.cid, 0, cid, size, batch.size);
+        System.arraycopy(batch.mcc, 0, mcc, size, batch.size);
+        System.arraycopy(batch.mnc, 0, mnc, size, batch.size);
+        System.arraycopy(batch.lng, 0, lng, size, batch.size);
+        System.arraycopy(batch.lat, 0, lat, size, batch.size);
+        size += batch.size;
+    }
+
+    private void trim() {
+        if (size < cid.length) resize(size);
+    }
+
+    private void resize(int capacity) {
+        cid = Arrays.copyOf(cid, capacity);
+        mcc = Arrays.copyOf(mcc, capacity);
+        mnc = Arrays.copyOf(mnc, capacity);
+        lng = Arrays.copyOf(lng, capacity);
+        lat = Arrays.copyOf(lat, capacity);
+    }
+
+}
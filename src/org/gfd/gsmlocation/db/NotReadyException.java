@@ -0,0 +1,18 @@
+package org.gfd.gsmlocation.db;
+
+import java.io.IOException;
+
+/**
+ * Thrown if a read hits a part of a database that is not extracted yet and
+ * can not be served otherwise. The lookup may succeed later, so the result
+ * must not be treated (or cached) as "not found".
+ */
+public class NotReadyException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public NotReadyException(long pos, long extracted) {
+        super("Offset " + pos + " not extracted yet (" + extracted + " bytes available)");
+    }
+
+}
@@ -0,0 +1,157 @@
+package org.gfd.gsmlocation.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Dictionary of all operators (MCC/MNC pairs) of a tower database. Codes are
+ * assigned in (mcc, mnc) order, so sorting by code equals sorting by
+ * (mcc, mnc) and all operators of a country form a contiguous code range.
+ */
+public final class OperatorDictionary {
+
+    /**
+     * Packed (mcc &lt;&lt; 32 | mnc) per code, sorted.
+     */
+    private final long[] operators;
+
+    /**
+     * Create a dictionary.
+     * @param operators Packed operators, see {@link #pack(int, int)}. Duplicates are removed.
+     */
+    public OperatorDictionary(long[] operators) {
+        long[] sorted = operators.clone();
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (n == 0 || sorted[n - 1] != sorted[i]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        if (n > 0xffff) {
+            throw new IllegalArgumentException("Too many operators: " + n);
+        }
+        this.operators = Arrays.copyOf(sorted, n);
+    }
+
+    /**
+     * Pack an operator into a single long.
+     * @param mcc The mobile country code.
+     * @param mnc The mobile network code.
+     * @return The packed operator.
+     */
+    public static long pack(int mcc, int mnc) {
+        return ((long) mcc << 32) | (mnc & 0xffffffffl);
+    }
+
+    /**
+     * Create the union of several dictionaries.
+     * @param dictionaries The dictionaries.
+     * @return A dictionary with all operators of the given ones.
+     */
+    public static OperatorDictionary union(OperatorDictionary[] dictionaries) {
+        int n = 0;
+        for (OperatorDictionary dictionary : dictionaries) {
+            n += dictionary.operators.length;
+        }
+        long[] operators = new long[n];
+        n = 0;
+        for (OperatorDictionary dictionary : dictionaries) {
+            System.arraycopy(dictionary.operators, 0, operators, n, dictionary.operators.length);
+            n += dictionary.operators.length;
+        }
+        return new OperatorDictionary(operators);
+    }
+
+    /**
+     * Check if two dictionaries assign the same codes.
+     * @param other The other dictionary.
+     * @return True if both hold the same operators.
+     */
+    public boolean sameCodes(OperatorDictionary other) {
+        return Arrays.equals(operators, other.operators);
+    }
+
+    public int size() {
+        return operators.length;
+    }
+
+    /**
+     * Retrieve the code of an operator.
+     * @param mcc The mobile country code.
+     * @param mnc The mobile network code.
+     * @return The code or -1 if the operator is unknown.
+     */
+    public int code(int mcc, int mnc) {
+        int i = Arrays.binarySearch(operators, pack(mcc, mnc));
+        return i < 0 ? -1 : i;
+    }
+
+    /**
+     * Retrieve the first code of a country.
+     * @param mcc The mobile country code.
+     * @return The first code with the given MCC, equal to {@link #last(int)} if there is none.
+     */
+    public int first(int mcc) {
+        int i = Arrays.binarySearch(operators, pack(mcc, 0));
+        return i < 0 ? -i - 1 : i;
+    }
+
+    /**
+     * Retrieve the code following the last code of a country.
+     * @param mcc The mobile country code.
+     * @return The exclusive upper bound of the country codes.
+     */
+    public int last(int mcc) {
+        // mnc is packed unsigned, -1 is the largest possible mnc
+        int i = Arrays.binarySearch(operators, pack(mcc, -1));
+        return i < 0 ? -i - 1 : i + 1;
+    }
+
+    public int mcc(int code) {
+        return (int) (operators[code] >> 32);
+    }
+
+    public int mnc(int code) {
+        return (int) operators[code];
+    }
+
+    /**
+     * Serialize the dictionary.
+     * @return The dictionary as byte array.
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(4 + operators.length * 8);
+        DataOutputStream out = new DataOutputStream(buf);
+        try {
+            out.writeInt(operators.length);
+            for (long operator : operators) {
+                out.writeLong(operator);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return buf.toByteArray();
+    }
+
+    /**
+     * Read a serialized dictionary.
+     * @param bytes The output of {@link #toBytes()}.
+     * @return The dictionary.
+     * @throws IOException
+     */
+    public static OperatorDictionary fromBytes(byte[] bytes) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        long[] operators = new long[in.readInt()];
+        for (int i = 0; i < operators.length; i++) {
+            operators[i] = in.readLong();
+        }
+        return new OperatorDictionary(operators);
+    }
+
+}
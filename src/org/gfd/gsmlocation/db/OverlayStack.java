@@ -0,0 +1,130 @@
+package org.gfd.gsmlocation.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * An ordered stack of small overlay files on top of a base tower database.
+ * Overlays are regular tower files (see {@link TowerReader}) holding inserts,
+ * updates and tombstones. They are merged at read time, the newest overlay
+ * wins. Entries are compared by their (lac, cid, mcc, mnc) key of one radio,
+ * so overlays may use another format than the base file.<br />
+ * A tombstone is an entry where every value is a NaN floating point value,
+ * it removes the key from all older layers.
+ */
+public class OverlayStack {
+
+    /**
+     * The overlays, oldest first.
+     */
+    private volatile TowerReader[] overlays;
+
+    public OverlayStack() {
+        this.overlays = new TowerReader[0];
+    }
+
+    /**
+     * Push a new overlay on top of the stack.
+     * @param overlay The overlay reader, newer than all overlays so far.
+     */
+    public synchronized void push(TowerReader overlay) {
+        TowerReader[] o = Arrays.copyOf(overlays, overlays.length + 1);
+        o[o.length - 1] = overlay;
+        overlays = o;
+    }
+
+    /**
+     * Number of overlays in the stack.
+     * @return The overlay count.
+     */
+    public int size() {
+        return overlays.length;
+    }
+
+    /**
+     * Check if a value is a tombstone (all values NaN).
+     * @param value The decoded value.
+     * @return True if the value marks a deleted key.
+     */
+    public static boolean isTombstone(Object[] value) {
+        if (value == null || value.length == 0) return false;
+        for (Object v : value) {
+            if (v instanceof Double && ((Double) v).isNaN()) continue;
+            if (v instanceof Float && ((Float) v).isNaN()) continue;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Merge all entries of a GSM cell into the base entries, see
+     * {@link TowerReader#find(int, int, Integer, Integer)}.
+     * @param base The entries found in the base file, or null.
+     * @param lac The location area code.
+     * @param cid The cell id.
+     * @param mcc The mobile country code or null.
+     * @param mnc The mobile network code or null.
+     * @return The merged entries, or null if there are none.
+     * @throws IOException
+     */
+    public BCSReader.BlockEntry[] getAll(
+        BCSReader.BlockEntry[] base, int lac, int cid, Integer mcc, Integer mnc
+    ) throws IOException {
+        return getAll(base, TowerReader.RADIO_GSM, lac, cid & 0xffffffffl, mcc, mnc);
+    }
+
+    /**
+     * Merge all entries of a cell into the base entries, see
+     * {@link TowerReader#find(int, int, long, Integer, Integer)}.
+     * Entries of the base layer keep their order, inserted keys are appended.
+     * @param base The entries found in the base file, or null.
+     * @param radio The radio type.
+     * @param lac The location area code.
+     * @param cid The unsigned cell id.
+     * @param mcc The mobile country code or null.
+     * @param mnc The mobile network code or null.
+     * @return The merged entries, or null if there are none.
+     * @throws IOException
+     */
+    public BCSReader.BlockEntry[] getAll(
+        BCSReader.BlockEntry[] base, int radio, int lac, long cid, Integer mcc, Integer mnc
+    ) throws IOException {
+        final TowerReader[] overlays = this.overlays;
+        if (overlays.length == 0) {
+            return base;
+        }
+        LinkedHashMap<List<Object>, BCSReader.BlockEntry> merged = null;
+        for (TowerReader overlay : overlays) {
+            BCSReader.BlockEntry[] es = overlay.find(radio, lac, cid, mcc, mnc);
+            if (es == null || es.length == 0) continue;
+            if (merged == null) {
+                merged = new LinkedHashMap<List<Object>, BCSReader.BlockEntry>();
+                if (base != null) {
+                    for (BCSReader.BlockEntry e : base) {
+                        merged.put(Arrays.asList(e.key), e);
+                    }
+                }
+            }
+            for (BCSReader.BlockEntry e : es) {
+                if (isTombstone(e.value)) {
+                    merged.remove(Arrays.asList(e.key));
+                } else {
+                    merged.put(Arrays.asList(e.key), e);
+                }
+            }
+        }
+        if (merged == null) {
+            return base;
+        }
+        if (merged.isEmpty()) {
+            return null;
+        }
+        ArrayList<BCSReader.BlockEntry> result =
+            new ArrayList<BCSReader.BlockEntry>(merged.values());
+        return result.toArray(new BCSReader.BlockEntry[result.size()]);
+    }
+
+}
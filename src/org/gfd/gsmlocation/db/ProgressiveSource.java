@@ -0,0 +1,69 @@
+package org.gfd.gsmlocation.db;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.tukaani.xz.SeekableXZInputStream;
+
+/**
+ * Source for a database that is still being extracted. Ranges below the
+ * extraction progress are read from the (partial) target file, everything
+ * else is decompressed with random access from the xz source if there is
+ * one. Random access needs a multi block xz file, otherwise the read fails
+ * with a {@link NotReadyException}.
+ */
+public class ProgressiveSource implements BCSReader.Source {
+
+    private final RandomAccessFile file;
+    private final ExtractionProgress progress;
+    private final SeekableXZInputStream xz;
+
+    /**
+     * Create a progressive source.
+     * @param file The extraction target, must exist.
+     * @param progress The extraction progress.
+     * @param xz Random access to the compressed database, or null.
+     * @throws IOException
+     */
+    public ProgressiveSource(String file, ExtractionProgress progress, SeekableXZInputStream xz)
+        throws IOException
+    {
+        this.file = new RandomAccessFile(file, "r");
+        this.progress = progress;
+        this.xz = xz;
+    }
+
+    public void read(long pos, byte[] buf, int off, int len) throws IOException {
+        if (pos + len <= progress.extracted()) {
+            synchronized (file) {
+                file.seek(pos);
+                file.readFully(buf, off, len);
+            }
+            return;
+        }
+        if (xz == null) {
+            throw new NotReadyException(pos, progress.extracted());
+        }
+        synchronized (xz) {
+            xz.seek(pos);
+            while (len > 0) {
+                final int read = xz.read(buf, off, len);
+                if (read < 0) {
+                    throw new EOFException("Unexpected end of the compressed database");
+                }
+                off += read;
+                len -= read;
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        try {
+            file.close();
+        } finally {
+            if (xz != null) xz.close();
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+package org.gfd.gsmlocation.db;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted, versioned tower reader. The owner (the database)
+ * holds one reference until the handle is retired, every query holds one
+ * reference while it runs. The reader is closed as soon as the handle was
+ * retired and the last query released it, so a replaced database file stays
+ * readable for all in-flight queries.
+ */
+public final class ReaderHandle {
+
+    public final TowerReader reader;
+    public final int version;
+
+    /**
+     * Number of references, starting with the owner reference. Once it
+     * dropped to zero it never grows again.
+     */
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    public ReaderHandle(TowerReader reader, int version) {
+        this.reader = reader;
+        this.version = version;
+    }
+
+    /**
+     * Acquire a reference for a query.
+     * @return False if the handle was already closed, retry with the current handle.
+     */
+    public boolean acquire() {
+        while (true) {
+            final int r = refs.get();
+            if (r <= 0) {
+                return false;
+            }
+            if (refs.compareAndSet(r, r + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Release a reference acquired by {@link #acquire()}, closing the reader
+     * if this was the last one.
+     * @throws IOException If closing the reader failed.
+     */
+    public void release() throws IOException {
+        if (refs.decrementAndGet() == 0) {
+            reader.close();
+        }
+    }
+
+    /**
+     * Drop the owner reference, the handle closes once all queries are done.
+     * Must be called exactly once, after the handle was replaced.
+     * @throws IOException If closing the reader failed.
+     */
+    public void retire() throws IOException {
+        release();
+    }
+
+}
@@ -0,0 +1,559 @@
+package org.gfd.gsmlocation.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Typed reader for tower databases: cells are identified by lac, cid, mcc and
+ * mnc and carry a (lng, lat) value. Supported formats:
+ * <ol>
+ *   <li>(lac, cid, mcc, mnc) int key, positions stored as doubles
+ *   <li>(lac, cid, mcc, mnc) int key, positions stored as 1e-7 degree fixed
+ *       point ints, which halves the value bytes per entry
+ *   <li>(lac, cid, operator) key where the operator is a short code of an
+ *       {@link OperatorDictionary} held in the header, fixed point positions
+ *   <li>(radio, lac, cid, operator) key with a long cid, for LTE and NR
+ *       cells next to GSM/UMTS cells, see RADIO_*. Blocks only store the
+ *       bytes that differ between their first and last key, so the wide cid
+ *       costs nothing in blocks of narrow GSM cids
+ * </ol>
+ * Formats 1 to 3 hold only {@link #RADIO_GSM} cells with 32 bit cids.
+ * {@link #lookup(int, int, int, int, double[])} decodes straight to
+ * primitive doubles, without boxing the key or the value.
+ * {@link #find(int, int, long, Integer, Integer)} returns entries with a
+ * (lac, cid, mcc, mnc) key and Double values for every format, the cid is
+ * an Integer for GSM cells and a Long for LTE and NR cells.
+ * {@link #scan(BatchConsumer)} streams the whole file in columnar batches
+ * for validation and export, {@link #scan(int, Batch, BatchConsumer)} a
+ * single location area.
+ */
+public class TowerReader extends BCSReader {
+
+    /**
+     * Positions stored as two doubles.
+     */
+    public final static int FORMAT_DOUBLE = 1;
+    /**
+     * Positions stored as two 1e-7 degree fixed point ints.
+     */
+    public final static int FORMAT_FIXED = 2;
+    /**
+     * Operator dictionary code instead of mcc/mnc, fixed point positions.
+     */
+    public final static int FORMAT_OPERATOR = 3;
+    /**
+     * Radio tag and long cid in front of the operator code, fixed point positions.
+     */
+    public final static int FORMAT_RADIO = 4;
+
+    /**
+     * GSM and UMTS cells, up to 28 bit cids.
+     */
+    public final static int RADIO_GSM = 0;
+    /**
+     * LTE cells, 28 bit E-UTRAN cell id, the lac is the tracking area code.
+     */
+    public final static int RADIO_LTE = 1;
+    /**
+     * NR cells, 36 bit NR cell id, the lac is the 24 bit tracking area code.
+     */
+    public final static int RADIO_NR = 2;
+
+    /**
+     * A reusable columnar batch of cells, see {@link #scan(Batch, int, BatchConsumer)}.
+     * Row i is the radio[i] cell (lac[i], cid[i], mcc[i], mnc[i]) at (lng[i], lat[i]) for
+     * i &lt; size. The cid is unsigned, a 32 bit cid is not sign extended.
+     */
+    public final static class Batch {
+        public final int[] radio;
+        public final int[] lac;
+        public final long[] cid;
+        public final int[] mcc;
+        public final int[] mnc;
+        public final double[] lng;
+        public final double[] lat;
+        public int size;
+
+        public Batch(int capacity) {
+            this.radio = new int[capacity];
+            this.lac = new int[capacity];
+            this.cid = new long[capacity];
+            this.mcc = new int[capacity];
+            this.mnc = new int[capacity];
+            this.lng = new double[capacity];
+            this.lat = new double[capacity];
+        }
+
+        public int capacity() {
+            return lac.length;
+        }
+    }
+
+    /**
+     * Receiver of scanned batches.
+     */
+    public interface BatchConsumer {
+        /**
+         * Receive the next rows in key order. The batch is reused after this
+         * call returns, copy what is needed later on.
+         * @param batch The batch.
+         * @throws IOException
+         */
+        void accept(Batch batch) throws IOException;
+    }
+
+    public final static Class<?>[] KEY_TYPES =
+        new Class<?>[]{Integer.class, Integer.class, Integer.class, Integer.class};
+
+    protected final int format;
+    protected final OperatorDictionary operators;
+
+    public TowerReader(int format, String file) throws IOException {
+        this(format, new FileSource(file));
+    }
+
+    public TowerReader(int format, Source source) throws IOException {
+        super(keyTypes(format), valueTypes(format), source);
+        this.format = format;
+        if (hasOperators(format)) {
+            this.operators = OperatorDictionary.fromBytes(readHeaderExtension());
+        } else {
+            this.operators = null;
+        }
+    }
+
+    /**
+     * The key types of a tower database format.
+     * @param format The format, see FORMAT_*.
+     * @return The key types.
+     */
+    public static Class<?>[] keyTypes(int format) {
+        if (format == FORMAT_OPERATOR) {
+            return new Class<?>[]{Integer.class, Integer.class, Short.class};
+        }
+        if (format == FORMAT_RADIO) {
+            return new Class<?>[]{Byte.class, Integer.class, Long.class, Short.class};
+        }
+        valueTypes(format); // validate
+        return KEY_TYPES;
+    }
+
+    /**
+     * The value types of a tower database format.
+     * @param format The format, see FORMAT_*.
+     * @return The value types.
+     */
+    public static Class<?>[] valueTypes(int format) {
+        switch (format) {
+            case FORMAT_DOUBLE:
+                return new Class<?>[]{Double.class, Double.class};
+            case FORMAT_FIXED:
+            case FORMAT_OPERATOR:
+            case FORMAT_RADIO:
+                return new Class<?>[]{FixedPoint.class, FixedPoint.class};
+        }
+        throw new IllegalArgumentException("Unknown tower db format " + format);
+    }
+
+    /**
+     * Check if a format stores operator codes instead of mcc/mnc.
+     * @param format The format, see FORMAT_*.
+     * @return True if the header holds an {@link OperatorDictionary}.
+     */
+    public static boolean hasOperators(int format) {
+        return format == FORMAT_OPERATOR || format == FORMAT_RADIO;
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * The operator dictionary.
+     * @return The dictionary, null unless the format is FORMAT_OPERATOR or FORMAT_RADIO.
+     */
+    public OperatorDictionary getOperators() {
+        return operators;
+    }
+
+    /**
+     * Lookup the position of a single GSM cell.
+     * @param lac The location area code.
+     * @param cid The cell id.
+     * @param mcc The mobile country code.
+     * @param mnc The mobile network code.
+     * @param lngLat Receives longitude and latitude on success.
+     * @return True if the cell was found.
+     * @throws IOException
+     */
+    public boolean lookup(int lac, int cid, int mcc, int mnc, double[] lngLat)
+        throws IOException
+    {
+        return lookup(RADIO_GSM, lac, cid & 0xffffffffl, mcc, mnc, lngLat);
+    }
+
+    /**
+     * Lookup the position of a single cell.
+     * @param radio The radio type, see RADIO_*.
+     * @param lac The location (or tracking) area code.
+     * @param cid The unsigned cell id.
+     * @param mcc The mobile country code.
+     * @param mnc The mobile network code.
+     * @param lngLat Receives longitude and latitude on success.
+     * @return True if the cell was found.
+     * @throws IOException
+     */
+    public boolean lookup(int radio, int lac, long cid, int mcc, int mnc, double[] lngLat)
+        throws IOException
+    {
+        final long start = System.nanoTime();
+        final int code = operators != null ? operators.code(mcc, mnc) : 0;
+        if (code < 0 || !holds(radio, cid)) {
+            // unknown operator or radio, no need to touch the file
+            record(start, exactMisses);
+            return false;
+        }
+        final byte[][] key;
+        if (format == FORMAT_RADIO) {
+            key = new byte[][]{
+                new byte[]{(byte) radio}, int2bytes(lac), long2bytes(cid), short2bytes(code)};
+        } else if (format == FORMAT_OPERATOR) {
+            key = new byte[][]{int2bytes(lac), int2bytes((int) cid), short2bytes(code)};
+        } else {
+            key = new byte[][]{
+                int2bytes(lac), int2bytes((int) cid), int2bytes(mcc), int2bytes(mnc)};
+        }
+        final byte[][] value = search(key);
+        record(start, value != null ? exactHits : exactMisses);
+        if (value == null) {
+            return false;
+        }
+        lngLat[0] = decode(value[0]);
+        lngLat[1] = decode(value[1]);
+        return true;
+    }
+
+    /**
+     * Check if the format can hold a cell.
+     * @param radio The radio type.
+     * @param cid The unsigned cell id.
+     * @return False if the cell can not be in the file.
+     */
+    private boolean holds(int radio, long cid) {
+        if (format == FORMAT_RADIO) return radio >= 0 && radio <= 0xff;
+        return radio == RADIO_GSM && (cid >>> 32) == 0;
+    }
+
+    /**
+     * Find all GSM cells with a given lac/cid, optionally filtered by mcc and/or mnc.
+     * @param lac The location area code.
+     * @param cid The cell id.
+     * @param mcc The mobile country code or null.
+     * @param mnc The mobile network code or null.
+     * @return Entries with a (lac, cid, mcc, mnc) Integer key and a (lng, lat) value, or null.
+     * @throws IOException
+     */
+    public BlockEntry[] find(int lac, int cid, Integer mcc, Integer mnc) throws IOException {
+        return find(RADIO_GSM, lac, cid & 0xffffffffl, mcc, mnc);
+    }
+
+    /**
+     * Find all cells with a given radio/lac/cid, optionally filtered by mcc and/or mnc.
+     * @param radio The radio type, see RADIO_*.
+     * @param lac The location (or tracking) area code.
+     * @param cid The unsigned cell id.
+     * @param mcc The mobile country code or null.
+     * @param mnc The mobile network code or null.
+     * @return Entries with a (lac, cid, mcc, mnc) key and a (lng, lat) value, or null. The cid
+     *         is an Integer for GSM cells and a Long otherwise, see {@link #cidKey(int, long)}.
+     * @throws IOException
+     */
+    public BlockEntry[] find(int radio, int lac, long cid, Integer mcc, Integer mnc)
+        throws IOException
+    {
+        if (!holds(radio, cid)) {
+            return null;
+        }
+        if (mcc != null && mnc != null) {
+            double[] lngLat = new double[2];
+            if (!lookup(radio, lac, cid, mcc, mnc, lngLat)) {
+                return null;
+            }
+            return new BlockEntry[]{entry(radio, lac, cid, mcc, mnc, lngLat[0], lngLat[1])};
+        }
+        if (operators == null) {
+            BlockEntry[] be = mcc != null ? getAll(lac, (int) cid, mcc) : getAll(lac, (int) cid);
+            if (be == null || be.length == 0 || mnc == null) {
+                return be;
+            }
+            // with only a mnc we can only search for cid + lac and must filter afterwards
+            ArrayList<BlockEntry> result = new ArrayList<BlockEntry>(be.length);
+            for (BlockEntry e : be) {
+                if (((Integer) e.key[3]).intValue() == mnc.intValue()) {
+                    result.add(e);
+                }
+            }
+            return result.toArray(new BlockEntry[result.size()]);
+        }
+        // operator codes: a country is a code range, a network is a set of codes
+        final int first = mcc != null ? operators.first(mcc) : 0;
+        final int last = mcc != null ? operators.last(mcc) : operators.size();
+        if (first == last) {
+            return null;
+        }
+        BlockEntry[] be = format == FORMAT_RADIO
+            ? getAll((byte) radio, lac, cid)
+            : getAll(lac, (int) cid);
+        if (be == null || be.length == 0) {
+            return be;
+        }
+        final int codeIndex = format == FORMAT_RADIO ? 3 : 2;
+        final Object cidKey = cidKey(radio, cid);
+        ArrayList<BlockEntry> result = new ArrayList<BlockEntry>(be.length);
+        for (BlockEntry e : be) {
+            final int code = ((Short) e.key[codeIndex]).shortValue() & 0xffff;
+            if (code < first || code >= last) continue;
+            if (mnc != null && operators.mnc(code) != mnc.intValue()) continue;
+            e.key = new Object[]{lac, cidKey, operators.mcc(code), operators.mnc(code)};
+            result.add(e);
+        }
+        return result.toArray(new BlockEntry[result.size()]);
+    }
+
+    /**
+     * The cid as used in the keys of {@link #find(int, int, long, Integer, Integer)}.
+     * @param radio The radio type.
+     * @param cid The unsigned cell id.
+     * @return An Integer for GSM cells, a Long otherwise.
+     */
+    public static Object cidKey(int radio, long cid) {
+        if (radio == RADIO_GSM) return Integer.valueOf((int) cid);
+        return Long.valueOf(cid);
+    }
+
+    static BlockEntry entry(
+        int radio, int lac, long cid, int mcc, int mnc, double lng, double lat
+    ) {
+        BlockEntry e = new BlockEntry();
+        e.key = new Object[]{lac, cidKey(radio, cid), mcc, mnc};
+        e.value = new Object[]{lng, lat};
+        return e;
+    }
+
+    /**
+     * Scan the whole file in key order, with default sizes (4096 rows per
+     * batch, 1MB reads).
+     * @param consumer The batch receiver.
+     * @return The number of rows.
+     * @throws IOException
+     */
+    public long scan(BatchConsumer consumer) throws IOException {
+        return scan(new Batch(4096), 256, consumer);
+    }
+
+    /**
+     * Scan the whole file in key order. The file is read in large chunks of
+     * whole blocks, every block is decoded straight into the columns of the
+     * batch without any per row allocation.
+     * @param batch The reusable batch.
+     * @param chunkBlocks The number of 4kb blocks per read.
+     * @param consumer The batch receiver, called whenever the batch is full
+     *                 and once for the remaining rows.
+     * @return The number of rows.
+     * @throws IOException
+     */
+    public long scan(Batch batch, int chunkBlocks, BatchConsumer consumer) throws IOException {
+        return scan(0, blockCount, false, 0, 0, batch, chunkBlocks, consumer);
+    }
+
+    /**
+     * Scan all cells of a location area. The key starts with the (radio and)
+     * lac, so the area is a contiguous range of blocks, found with a single
+     * block range search.
+     * @param radio The radio type, see RADIO_*.
+     * @param lac The location area code.
+     * @param batch The reusable batch.
+     * @param consumer The batch receiver, see {@link #scan(Batch, int, BatchConsumer)}.
+     * @return The number of rows of the area.
+     * @throws IOException
+     */
+    public long scan(int radio, int lac, Batch batch, BatchConsumer consumer)
+        throws IOException
+    {
+        if (!holds(radio, 0)) {
+            return 0;
+        }
+        final byte[][] prefix = format == FORMAT_RADIO
+            ? new byte[][]{new byte[]{(byte) radio}, int2bytes(lac)}
+            : new byte[][]{int2bytes(lac)};
+        final BlockMeta[] range = blockRangeSearch(prefix);
+        if (range == null) {
+            return 0;
+        }
+        final int first = range[0].blockId;
+        final int end = range[1].blockId + 1;
+        return scan(first, end, true, radio, lac, batch, Math.min(256, end - first), consumer);
+    }
+
+    /**
+     * Scan a range of blocks in key order, see {@link #scan(Batch, int, BatchConsumer)}.
+     * @param first The first block.
+     * @param end The block after the last block.
+     * @param filter True to skip all rows outside of the radio and lac.
+     * @param radio The radio type, if filtered.
+     * @param lac The location area code, if filtered.
+     * @param batch The reusable batch.
+     * @param chunkBlocks The number of 4kb blocks per read.
+     * @param consumer The batch receiver.
+     * @return The number of rows passed to the consumer.
+     * @throws IOException
+     */
+    private long scan(
+        int first, int end, boolean filter, int radio, int lac,
+        Batch batch, int chunkBlocks, BatchConsumer consumer
+    ) throws IOException {
+        final int keyCount = keySizes.length;
+        // the radio tag comes first, everything else is shifted by one
+        final int lacIndex = format == FORMAT_RADIO ? 1 : 0;
+        final int fragments = keyCount + valueSizes.length;
+        final int[] sizes = new int[fragments];
+        System.arraycopy(keySizes, 0, sizes, 0, keyCount);
+        System.arraycopy(valueSizes, 0, sizes, keyCount, valueSizes.length);
+        // per block: fragment base (low bound), suffix length and suffix mask
+        final long[] base = new long[fragments];
+        final int[] suffix = new int[fragments];
+        final long[] mask = new long[fragments];
+        final long[] row = new long[fragments];
+        int[] codeMcc = null;
+        int[] codeMnc = null;
+        if (operators != null) {
+            codeMcc = new int[operators.size()];
+            codeMnc = new int[operators.size()];
+            for (int i = 0; i < codeMcc.length; i++) {
+                codeMcc[i] = operators.mcc(i);
+                codeMnc[i] = operators.mnc(i);
+            }
+        }
+
+        final int metaSize = blockMetaSize();
+        final byte[] metas = new byte[chunkBlocks * metaSize];
+        final byte[] blocks = new byte[chunkBlocks * 4096];
+        final int capacity = batch.capacity();
+        long rows = 0;
+        batch.size = 0;
+        for (int chunk = first; chunk < end; chunk += chunkBlocks) {
+            final int count = Math.min(chunkBlocks, end - chunk);
+            readBlockMetas(chunk, count, metas);
+            readBlocks(chunk, count, blocks);
+            for (int b = 0; b < count; b++) {
+                final int m = b * metaSize;
+                final int entries = (int) readLong(metas, m, 4);
+                int low = m + 4;
+                int high = m + 4 + keySize;
+                for (int i = 0; i < fragments; i++) {
+                    if (i == keyCount) {
+                        // keys are done, continue with valueLow/valueHigh
+                        low = m + 4 + 2 * keySize;
+                        high = low + valueSize;
+                    }
+                    final long l = readLong(metas, low, sizes[i]);
+                    final long h = readLong(metas, high, sizes[i]);
+                    low += sizes[i];
+                    high += sizes[i];
+                    final long diff = l ^ h;
+                    suffix[i] = diff == 0 ? 0 :
+                        sizes[i] - (Long.numberOfLeadingZeros(diff) - (64 - 8 * sizes[i])) / 8;
+                    mask[i] = suffix[i] == 8 ? -1l : (1l << (8 * suffix[i])) - 1;
+                    base[i] = l & ~mask[i];
+                }
+                int offset = b * 4096;
+                for (int e = 0; e < entries; e++) {
+                    for (int i = 0; i < fragments; i++) {
+                        row[i] = base[i] | readLong(blocks, offset, suffix[i]);
+                        offset += suffix[i];
+                    }
+                    final int rowRadio = lacIndex == 0 ? RADIO_GSM : (int) row[0];
+                    if (filter && ((int) row[lacIndex] != lac || rowRadio != radio)) continue;
+                    rows++;
+                    final int r = batch.size;
+                    batch.radio[r] = rowRadio;
+                    batch.lac[r] = (int) row[lacIndex];
+                    batch.cid[r] = row[lacIndex + 1];
+                    if (codeMcc != null) {
+                        final int code = (int) row[lacIndex + 2] & 0xffff;
+                        batch.mcc[r] = codeMcc[code];
+                        batch.mnc[r] = codeMnc[code];
+                    } else {
+                        batch.mcc[r] = (int) row[2];
+                        batch.mnc[r] = (int) row[3];
+                    }
+                    if (format == FORMAT_DOUBLE) {
+                        batch.lng[r] = Double.longBitsToDouble(row[keyCount]);
+                        batch.lat[r] = Double.longBitsToDouble(row[keyCount + 1]);
+                    } else {
+                        batch.lng[r] = FixedPoint.decode((int) row[keyCount]);
+                        batch.lat[r] = FixedPoint.decode((int) row[keyCount + 1]);
+                    }
+                    if (++batch.size == capacity) {
+                        consumer.accept(batch);
+                        batch.size = 0;
+                    }
+                }
+                entriesDecoded.addAndGet(entries);
+            }
+        }
+        if (batch.size > 0) {
+            consumer.accept(batch);
+            batch.size = 0;
+        }
+        return rows;
+    }
+
+    /**
+     * Read a big endian number of up to 8 bytes.
+     * @param buf The buffer.
+     * @param offset The offset of the first byte.
+     * @param length The number of bytes.
+     * @return The number, not sign extended.
+     */
+    private static long readLong(byte[] buf, int offset, int length) {
+        long v = 0;
+        for (int i = 0; i < length; i++) {
+            v = (v << 8) | (buf[offset + i] & 0xffl);
+        }
+        return v;
+    }
+
+    /**
+     * Decode a single coordinate.
+     * @param bytes The encoded coordinate.
+     * @return The coordinate in degree.
+     */
+    protected double decode(byte[] bytes) {
+        if (format == FORMAT_DOUBLE) {
+            return Double.longBitsToDouble(bytes2long(bytes));
+        }
+        return FixedPoint.decode(bytes2int(bytes));
+    }
+
+    private static byte[] int2bytes(int i) {
+        return new byte[] {
+            (byte)(i >> 24), (byte)(i >> 16),
+            (byte)(i >>  8), (byte) i
+        };
+    }
+
+    private static byte[] long2bytes(long l) {
+        return new byte[] {
+            (byte)(l >> 56), (byte)(l >> 48),
+            (byte)(l >> 40), (byte)(l >> 32),
+            (byte)(l >> 24), (byte)(l >> 16),
+            (byte)(l >>  8), (byte) l
+        };
+    }
+
+    private static byte[] short2bytes(int s) {
+        return new byte[] { (byte)(s >> 8), (byte) s };
+    }
+
+}
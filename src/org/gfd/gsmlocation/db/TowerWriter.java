@@ -0,0 +1,161 @@
+package org.gfd.gsmlocation.db;
+
+import java.io.IOException;
+import java.util.HashSet;
+
+/**
+ * Typed writer for tower databases, see {@link TowerReader} for the formats.
+ * Cells must be appended in ascending (lac, cid, mcc, mnc) order, for
+ * {@link TowerReader#FORMAT_RADIO} in (radio, lac, cid, mcc, mnc) order with
+ * unsigned cids. For formats with operator codes the operator dictionary
+ * must be known upfront, codes follow (mcc, mnc) order so the key order is
+ * preserved.
+ */
+public class TowerWriter extends BCSWriter {
+
+    protected final int format;
+    protected final OperatorDictionary operators;
+
+    /**
+     * Create a writer for formats without an operator dictionary.
+     * @param format The format, see TowerReader.FORMAT_*.
+     * @param file The output file.
+     * @throws IOException
+     */
+    public TowerWriter(int format, String file) throws IOException {
+        this(format, file, null);
+    }
+
+    /**
+     * Create a writer.
+     * @param format The format, see TowerReader.FORMAT_*.
+     * @param file The output file.
+     * @param operators All operators of the file, required for FORMAT_OPERATOR and
+     *                  FORMAT_RADIO.
+     * @throws IOException
+     */
+    public TowerWriter(int format, String file, OperatorDictionary operators)
+        throws IOException
+    {
+        super(TowerReader.keyTypes(format), TowerReader.valueTypes(format), file);
+        if (TowerReader.hasOperators(format)) {
+            if (operators == null) {
+                throw new IllegalArgumentException("Operator dictionary required");
+            }
+            setHeaderExtension(operators.toBytes());
+        }
+        this.format = format;
+        this.operators = operators;
+    }
+
+    /**
+     * Append a single GSM cell.
+     * @param lac The location area code.
+     * @param cid The cell id.
+     * @param mcc The mobile country code.
+     * @param mnc The mobile network code.
+     * @param lng The longitude, NaN for a tombstone.
+     * @param lat The latitude, NaN for a tombstone.
+     * @throws IOException
+     */
+    public void append(int lac, int cid, int mcc, int mnc, double lng, double lat)
+        throws IOException
+    {
+        append(TowerReader.RADIO_GSM, lac, cid & 0xffffffffl, mcc, mnc, lng, lat);
+    }
+
+    /**
+     * Append a single cell.
+     * @param radio The radio type, see TowerReader.RADIO_*.
+     * @param lac The location (or tracking) area code.
+     * @param cid The unsigned cell id.
+     * @param mcc The mobile country code.
+     * @param mnc The mobile network code.
+     * @param lng The longitude, NaN for a tombstone.
+     * @param lat The latitude, NaN for a tombstone.
+     * @throws IOException If the format can not hold the cell.
+     */
+    public void append(int radio, int lac, long cid, int mcc, int mnc, double lng, double lat)
+        throws IOException
+    {
+        if (format != TowerReader.FORMAT_RADIO
+            && (radio != TowerReader.RADIO_GSM || (cid >>> 32) != 0)
+        ) {
+            throw new IOException("Format " + format + " can not hold radio " + radio
+                    + " cell " + cid);
+        }
+        int code = 0;
+        if (operators != null) {
+            code = operators.code(mcc, mnc);
+            if (code < 0) {
+                throw new IOException("Operator " + mcc + "/" + mnc + " not in dictionary");
+            }
+        }
+        final Object[] key;
+        if (format == TowerReader.FORMAT_RADIO) {
+            key = new Object[]{(byte) radio, lac, cid, (short) code};
+        } else if (format == TowerReader.FORMAT_OPERATOR) {
+            key = new Object[]{lac, (int) cid, (short) code};
+        } else {
+            key = new Object[]{lac, (int) cid, mcc, mnc};
+        }
+        append(key, new Object[]{lng, lat});
+    }
+
+    /**
+     * Convert a tower database to another format. Needs two sequential passes
+     * over the input, the first one collects the operator dictionary. LTE and
+     * NR cells can only be converted to {@link TowerReader#FORMAT_RADIO}.
+     * @param in The input database.
+     * @param format The output format.
+     * @param file The output file.
+     * @return The number of entries written.
+     * @throws IOException
+     */
+    public static long convert(TowerReader in, final int format, String file) throws IOException {
+        return convert(in, format, file, in.getOperators());
+    }
+
+    /**
+     * Convert a tower database to another format with a given operator dictionary.
+     * @param in The input database.
+     * @param format The output format.
+     * @param file The output file.
+     * @param operators The operator dictionary of the output, must hold all operators of the
+     *                  input. Collected from the input if null.
+     * @return The number of entries written.
+     * @throws IOException
+     */
+    public static long convert(
+        TowerReader in, final int format, String file, OperatorDictionary operators
+    ) throws IOException {
+        if (TowerReader.hasOperators(format) && operators == null) {
+            final HashSet<Long> seen = new HashSet<Long>();
+            in.scan(new TowerReader.BatchConsumer() {
+                public void accept(TowerReader.Batch batch) {
+                    for (int i = 0; i < batch.size; i++) {
+                        seen.add(OperatorDictionary.pack(batch.mcc[i], batch.mnc[i]));
+                    }
+                }
+            });
+            long[] packed = new long[seen.size()];
+            int i = 0;
+            for (Long op : seen) {
+                packed[i++] = op;
+            }
+            operators = new OperatorDictionary(packed);
+        }
+        final TowerWriter out = new TowerWriter(format, file, operators);
+        in.scan(new TowerReader.BatchConsumer() {
+            public void accept(TowerReader.Batch b) throws IOException {
+                for (int i = 0; i < b.size; i++) {
+                    out.append(b.radio[i], b.lac[i], b.cid[i], b.mcc[i], b.mnc[i],
+                            b.lng[i], b.lat[i]);
+                }
+            }
+        });
+        out.close();
+        return out.getEntryCount();
+    }
+
+}
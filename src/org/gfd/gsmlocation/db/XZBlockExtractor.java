@@ -0,0 +1,391 @@
+package org.gfd.gsmlocation.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import org.tukaani.xz.SeekableXZInputStream;
+
+/**
+ * Random access to a multi block xz file, e.g. an uncompressed asset inside
+ * the apk. Blocks are independent, so they can be decompressed in parallel
+ * with one decoder per thread, each block is written to its own offset of
+ * the target file.
+ */
+public class XZBlockExtractor {
+
+    private final FileChannel channel;
+    private final long offset;
+    private final long length;
+
+    /**
+     * Block layout (uncompressed offset and size) of the xz file.
+     */
+    private final long[] blockPos;
+    private final long[] blockSize;
+
+    /**
+     * Create an extractor for a region of a file channel.
+     * @param channel The channel, owned by the extractor.
+     * @param offset The start of the xz file.
+     * @param length The length of the xz file.
+     * @throws IOException If the xz index can not be read.
+     */
+    public XZBlockExtractor(FileChannel channel, long offset, long length) throws IOException {
+        this.channel = channel;
+        this.offset = offset;
+        this.length = length;
+        final SeekableXZInputStream xz = open();
+        blockPos = new long[xz.getBlockCount()];
+        blockSize = new long[blockPos.length];
+        for (int i = 0; i < blockPos.length; i++) {
+            blockPos[i] = xz.getBlockPos(i);
+            blockSize[i] = xz.getBlockSize(i);
+        }
+    }
+
+    /**
+     * Open an additional random access stream. All streams read the shared
+     * channel with positional reads, they can be used concurrently. Closing
+     * a stream closes the channel.
+     * @return A new stream.
+     * @throws IOException
+     */
+    public SeekableXZInputStream open() throws IOException {
+        return new SeekableXZInputStream(new ChannelSeekableInputStream(channel, offset, length));
+    }
+
+    public int getBlockCount() {
+        return blockPos.length;
+    }
+
+    /**
+     * The uncompressed size of the xz file.
+     * @return The extracted size in bytes.
+     */
+    public long getUncompressedSize() {
+        final int last = blockPos.length - 1;
+        return last < 0 ? 0 : blockPos[last] + blockSize[last];
+    }
+
+    /**
+     * Extract all blocks in parallel. Blocks are claimed in file order, the
+     * progress advances over the completed prefix of the file.<br />
+     * Every completed block is checkpointed in a journal next to the target
+     * (target + ".journal"), an interrupted extraction resumes with the
+     * missing blocks. All blocks are verified against the journal checksums
+     * before the method returns, the journal is deleted on success.
+     * @param target The target file.
+     * @param threads The maximum number of decoder threads.
+     * @param progress The progress to advance, or null.
+     * @throws IOException
+     */
+    public void extract(File target, int threads, ExtractionProgress progress)
+        throws IOException
+    {
+        final File journalFile = new File(target.getPath() + ".journal");
+        final boolean resume = target.exists() && target.length() == getUncompressedSize();
+        final Journal journal = new Journal(journalFile, resume);
+        final RandomAccessFile out = new RandomAccessFile(target, "rw");
+        try {
+            out.setLength(getUncompressedSize());
+            final Completion completion = new Completion(journal, progress);
+            run(out.getChannel(), pending(journal), threads, completion);
+            int[] corrupt = verify(out.getChannel(), journal);
+            if (corrupt.length > 0) {
+                // a block written before a crash did not make it to the disk, retry once
+                completion.reset(corrupt);
+                run(out.getChannel(), corrupt, threads, completion);
+                corrupt = verify(out.getChannel(), journal);
+                if (corrupt.length > 0) {
+                    throw new IOException(corrupt.length + " blocks failed verification");
+                }
+            }
+        } finally {
+            out.close();
+            journal.close();
+        }
+        if (!journalFile.delete()) {
+            throw new IOException("Could not delete " + journalFile);
+        }
+    }
+
+    /**
+     * The blocks that are not in the journal yet.
+     * @param journal The journal.
+     * @return The missing block numbers in file order.
+     */
+    private int[] pending(Journal journal) {
+        int count = 0;
+        for (int i = 0; i < journal.done.length; i++) {
+            if (!journal.done[i]) count++;
+        }
+        int[] pending = new int[count];
+        count = 0;
+        for (int i = 0; i < journal.done.length; i++) {
+            if (!journal.done[i]) pending[count++] = i;
+        }
+        return pending;
+    }
+
+    /**
+     * Decompress blocks on a fixed thread pool.
+     * @param out The target channel.
+     * @param blocks The blocks to extract, claimed in array order.
+     * @param threads The maximum number of decoder threads.
+     * @param completion Notified after each block.
+     * @throws IOException
+     */
+    private void run(
+        final FileChannel out, final int[] blocks, int threads, final Completion completion
+    ) throws IOException {
+        threads = Math.min(threads, blocks.length);
+        if (threads <= 0) return;
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        try {
+            ArrayList<Future<Void>> workers = new ArrayList<Future<Void>>(threads);
+            for (int t = 0; t < threads; t++) {
+                workers.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        // no close, that would close the shared channel
+                        final SeekableXZInputStream xz = open();
+                        final byte[] buf = new byte[64 * 1024];
+                        final CRC32 crc = new CRC32();
+                        int i;
+                        while (!failed.get() && (i = next.getAndIncrement()) < blocks.length) {
+                            try {
+                                crc.reset();
+                                extractBlock(xz, blocks[i], out, buf, crc);
+                                // the data must be on disk before the journal says so
+                                out.force(false);
+                                completion.done(blocks[i], (int) crc.getValue());
+                            } catch (IOException e) {
+                                failed.set(true);
+                                throw e;
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException("Extraction failed", e.getCause());
+                } catch (InterruptedException e) {
+                    failed.set(true);
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Extraction interrupted");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Decompress a single block to its offset of the target.
+     * @param xz The decoder of the calling thread.
+     * @param block The block number.
+     * @param out The target channel.
+     * @param buf A scratch buffer.
+     * @param crc Checksum of the written data, updated.
+     * @throws IOException
+     */
+    private void extractBlock(
+        SeekableXZInputStream xz, int block, FileChannel out, byte[] buf, CRC32 crc
+    ) throws IOException {
+        xz.seekToBlock(block);
+        long pos = blockPos[block];
+        long remaining = blockSize[block];
+        while (remaining > 0) {
+            final int read = xz.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (read < 0) {
+                throw new IOException("Truncated xz block " + block);
+            }
+            crc.update(buf, 0, read);
+            final ByteBuffer bb = ByteBuffer.wrap(buf, 0, read);
+            while (bb.hasRemaining()) {
+                pos += out.write(bb, pos);
+            }
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Compare the extracted blocks with the journal checksums.
+     * @param out The target channel.
+     * @param journal The complete journal.
+     * @return The numbers of all blocks that do not match.
+     * @throws IOException
+     */
+    private int[] verify(FileChannel out, Journal journal) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        final CRC32 crc = new CRC32();
+        int[] corrupt = new int[0];
+        for (int block = 0; block < blockPos.length; block++) {
+            crc.reset();
+            long pos = blockPos[block];
+            final long end = pos + blockSize[block];
+            while (pos < end) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), end - pos));
+                final int read = out.read(buf, pos);
+                if (read < 0) break;
+                crc.update(buf.array(), 0, read);
+                pos += read;
+            }
+            if (pos < end || !journal.done[block] || journal.crc[block] != (int) crc.getValue()) {
+                corrupt = Arrays.copyOf(corrupt, corrupt.length + 1);
+                corrupt[corrupt.length - 1] = block;
+            }
+        }
+        return corrupt;
+    }
+
+    /**
+     * Bookkeeping of completed blocks, shared by all workers.
+     */
+    private class Completion {
+
+        private final Journal journal;
+        private final ExtractionProgress progress;
+        private final boolean[] done;
+
+        /**
+         * Number of leading blocks that are done and accounted as progress.
+         */
+        private int prefix = 0;
+
+        private Completion(Journal journal, ExtractionProgress progress) {
+            this.journal = journal;
+            this.progress = progress;
+            this.done = Arrays.copyOf(journal.done, journal.done.length);
+            advance();
+        }
+
+        private synchronized void done(int block, int crc) throws IOException {
+            journal.commit(block, crc);
+            done[block] = true;
+            advance();
+        }
+
+        private synchronized void reset(int[] blocks) {
+            for (int block : blocks) {
+                done[block] = false;
+            }
+        }
+
+        private void advance() {
+            while (prefix < done.length && done[prefix]) {
+                if (progress != null) {
+                    progress.advance(blockSize[prefix]);
+                }
+                prefix++;
+            }
+        }
+
+    }
+
+    /**
+     * Checkpoint file of completed blocks. A header identifies the xz file,
+     * followed by one (block, crc32) record per completed block. Records are
+     * synced one by one, a torn trailing record is ignored.
+     */
+    private class Journal {
+
+        private static final int MAGIC = 0x58424a31;
+
+        private final RandomAccessFile file;
+        private final boolean[] done = new boolean[blockPos.length];
+        private final int[] crc = new int[blockPos.length];
+
+        /**
+         * Open a journal.
+         * @param f The journal file.
+         * @param resume True to load a matching journal, false to start over.
+         * @throws IOException
+         */
+        private Journal(File f, boolean resume) throws IOException {
+            file = new RandomAccessFile(f, "rw");
+            if (resume && load()) {
+                return;
+            }
+            file.setLength(0);
+            file.writeInt(MAGIC);
+            file.writeInt(blockPos.length);
+            file.writeLong(getUncompressedSize());
+            file.writeLong(length);
+            file.getFD().sync();
+        }
+
+        /**
+         * Load the completed blocks.
+         * @return False if the journal belongs to another xz file.
+         * @throws IOException
+         */
+        private boolean load() throws IOException {
+            if (file.length() < 24) return false;
+            file.seek(0);
+            if (file.readInt() != MAGIC
+                || file.readInt() != blockPos.length
+                || file.readLong() != getUncompressedSize()
+                || file.readLong() != length
+            ) {
+                return false;
+            }
+            long pos = 24;
+            while (pos + 8 <= file.length()) {
+                final int block = file.readInt();
+                final int c = file.readInt();
+                if (block < 0 || block >= done.length) break;
+                done[block] = true;
+                crc[block] = c;
+                pos += 8;
+            }
+            file.setLength(pos);
+            return true;
+        }
+
+        private void commit(int block, int c) throws IOException {
+            crc[block] = c;
+            done[block] = true;
+            file.seek(file.length());
+            file.writeInt(block);
+            file.writeInt(c);
+            file.getFD().sync();
+        }
+
+        private void close() throws IOException {
+            file.close();
+        }
+
+    }
+
+    /**
+     * Close the underlying channel.
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -1,9 +1,18 @@
 package org.gfd.gsmlocation.model;
 
+import org.gfd.gsmlocation.db.TowerReader;
+
 public class CellInfo {
+    /**
+     * The radio type, see TowerReader.RADIO_*. LAC is the tracking area code for LTE and NR.
+     */
+    public int radio = TowerReader.RADIO_GSM;
     public int MCC = -1;
     public int MNC = -1;
-    public int CID = -1;
+    /**
+     * The cell id, up to 36 bit for NR cells.
+     */
+    public long CID = -1;
     public int LAC = -1;
     public int dbm = 0;
     public double lat = 0d;
@@ -17,6 +26,7 @@ public class CellInfo {
 
         CellInfo cellInfo = (CellInfo) o;
 
+        if (radio != cellInfo.radio) return false;
         if (CID != cellInfo.CID) return false;
         if (LAC != cellInfo.LAC) return false;
         if (MCC != cellInfo.MCC) return false;
@@ -30,9 +40,10 @@ public class CellInfo {
     public int hashCode() {
         int result;
         long temp;
-        result = MCC;
+        result = radio;
+        result = 31 * result + MCC;
         result = 31 * result + MNC;
-        result = 31 * result + CID;
+        result = 31 * result + (int) (CID ^ (CID >>> 32));
         result = 31 * result + LAC;
         temp = Double.doubleToLongBits(lat);
         result = 31 * result + (int) (temp ^ (temp >>> 32));
@@ -44,7 +55,7 @@ public class CellInfo {
     public void sanitize() {
         if (MCC == Integer.MAX_VALUE) MCC = -1;
         if (MNC == Integer.MAX_VALUE) MNC = -1;
-        if (CID == Integer.MAX_VALUE) CID = -1;
+        if (CID == Integer.MAX_VALUE || CID == Long.MAX_VALUE) CID = -1;
         if (LAC == Integer.MAX_VALUE) LAC = -1;
     }
 
@@ -54,7 +65,8 @@ public class CellInfo {
 
     public String toString() {
         return "CellInfo(" +
-                "MCC=" + MCC +
+                "radio=" + radio +
+                ", MCC=" + MCC +
                 ", MNC=" + MNC +
                 ", CID=" + CID +
                 ", LAC=" + LAC +